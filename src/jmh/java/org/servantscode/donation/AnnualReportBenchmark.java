@@ -0,0 +1,76 @@
+package org.servantscode.donation;
+
+import org.openjdk.jmh.annotations.*;
+import org.servantscode.donation.db.BenchmarkData;
+import org.servantscode.donation.db.DonationDB;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One family's annual statement PDF, from donations to bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AnnualReportBenchmark {
+    @Param({"10", "100", "1000"})
+    public int gifts;
+
+    private AnnualReportWriter reportWriter;
+    private List<Donation> donations;
+    private Map<String, Object> family;
+    private Map<String, Object> parish;
+    private ByteArrayOutputStream output;
+
+    @Setup
+    public void setup() {
+        reportWriter = new AnnualReportWriter(new DonationDB(), 1);
+        donations = BenchmarkData.donations(gifts);
+        family = family();
+        parish = parish();
+        output = new ByteArrayOutputStream(64 * 1024);
+    }
+
+    @Benchmark
+    public int renderStatement() throws IOException {
+        output.reset();
+        reportWriter.writeSingleReport(donations, family, parish, output);
+        return output.size();
+    }
+
+    // ----- Private -----
+    private static Map<String, Object> family() {
+        Map<String, Object> family = new HashMap<>();
+        family.put("id", 1);
+        family.put("surname", "Smith");
+        family.put("formalGreeting", "Mr. and Mrs. John Smith");
+        family.put("address", address("123 Main St", "Springfield", "IL", "62701"));
+        return family;
+    }
+
+    private static Map<String, Object> parish() {
+        Map<String, Object> pastor = new HashMap<>();
+        pastor.put("name", "Fr. Thomas Brown");
+
+        Map<String, Object> parish = new HashMap<>();
+        parish.put("name", "St. Mary's Parish");
+        parish.put("address", address("1 Church Rd", "Springfield", "IL", "62702"));
+        parish.put("phoneNumber", "(217) 555-0100");
+        parish.put("pastor", pastor);
+        return parish;
+    }
+
+    private static Map<String, Object> address(String street, String city, String state, String zip) {
+        Map<String, Object> address = new HashMap<>();
+        address.put("street1", street);
+        address.put("city", city);
+        address.put("state", state);
+        address.put("zip", zip);
+        return address;
+    }
+}
@@ -0,0 +1,40 @@
+package org.servantscode.donation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.*;
+import org.servantscode.donation.db.BenchmarkData;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON encoding of a donation list page, as returned by GET /donation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+    @Param({"10", "100", "1000"})
+    public int pageSize;
+
+    private ObjectMapper mapper;
+    private PaginatedDonationResponse page;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+        List<Donation> donations = BenchmarkData.donations(pageSize);
+        float total = (float) donations.stream().mapToDouble(Donation::getAmount).sum();
+        page = new PaginatedDonationResponse(0, pageSize, pageSize*20, donations, total);
+    }
+
+    @Benchmark
+    public byte[] serializePage() throws Exception {
+        return mapper.writeValueAsBytes(page);
+    }
+}
@@ -0,0 +1,101 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.donation.Donation;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic rows shaped like the donation and pledge queries. Every 7th gift is $250 or more so statements
+ * render their itemized page.
+ */
+public class BenchmarkData {
+    private static final LocalDate YEAR_START = LocalDate.of(2019, 1, 1);
+    private static final String[] FUNDS = {"General Fund", "Building Fund", "Missions", "Youth Ministry"};
+    private static final String[] TYPES = {"CHECK", "CASH", "EGIFT", "CREDIT_CARD"};
+
+    public static Map<String, Object> donationRow(int i) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", 100000L + i);
+        row.put("family_id", 1 + i % 500);
+        row.put("family_name", "Family " + (i % 500));
+        row.put("fund_id", 1 + i % FUNDS.length);
+        row.put("fund_name", FUNDS[i % FUNDS.length]);
+        row.put("pledge_id", i % 3 == 0? 0: 1 + i % 200);
+        row.put("amount", amount(i));
+        row.put("deductible_amount", amount(i));
+        row.put("date", Date.valueOf(YEAR_START.plusDays(i % 365)));
+        row.put("type", TYPES[i % TYPES.length]);
+        row.put("check_number", i % TYPES.length == 0? 1000L + i: 0L);
+        row.put("transaction_id", i % TYPES.length == 2? "txn-" + i: null);
+        row.put("notes", i % 10 == 0? "Memorial gift": null);
+        row.put("recorded_time", Timestamp.valueOf(YEAR_START.plusDays(i % 365).atTime(10, 30)));
+        row.put("recorder_id", 7);
+        row.put("recorder_name", "Parish Office");
+        return row;
+    }
+
+    public static List<Map<String, Object>> donationRows(int count) {
+        List<Map<String, Object>> rows = new ArrayList<>(count);
+        for(int i=0; i<count; i++)
+            rows.add(donationRow(i));
+        return rows;
+    }
+
+    public static Map<String, Object> pledgeRow(int i) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", 1 + i);
+        row.put("family_id", 1 + i % 500);
+        row.put("family_name", "Family " + (i % 500));
+        row.put("fund_id", 1 + i % FUNDS.length);
+        row.put("fund_name", FUNDS[i % FUNDS.length]);
+        row.put("pledge_type", i % 2 == 0? "EGIFT": "BASKET");
+        row.put("pledge_date", Date.valueOf(YEAR_START.minusDays(30)));
+        row.put("pledge_start", Date.valueOf(YEAR_START));
+        row.put("pledge_end", Date.valueOf(YEAR_START.plusYears(1).minusDays(1)));
+        row.put("frequency", "MONTHLY");
+        row.put("pledge_increment", 100.0f);
+        row.put("total_pledge", 1200.0f);
+        row.put("total_donations", 600.0f);
+        row.put("collected_pct", 0.5f);
+        row.put("time_pct", 0.5f);
+        row.put("completion_score", 1.0f);
+        row.put("pledge_status", "CURRENT");
+        return row;
+    }
+
+    public static List<Donation> donations(int count) {
+        List<Donation> donations = new ArrayList<>(count);
+        for(int i=0; i<count; i++) {
+            Donation donation = new Donation();
+            donation.setId(100000L + i);
+            donation.setFamilyId(1);
+            donation.setFamilyName("Family 0");
+            donation.setFundId(1 + i % FUNDS.length);
+            donation.setFundName(FUNDS[i % FUNDS.length]);
+            donation.setAmount(amount(i));
+            donation.setDeductibleAmount(amount(i));
+            donation.setDonationDate(YEAR_START.plusDays(i % 365));
+            donation.setDonationType(TYPES[i % TYPES.length]);
+            donation.setCheckNumber(i % TYPES.length == 0? 1000L + i: 0L);
+            donation.setRecordedTime(ZonedDateTime.now());
+            donation.setRecorderId(7);
+            donation.setRecorderName("Parish Office");
+            donations.add(donation);
+        }
+        return donations;
+    }
+
+    // ----- Private -----
+    private static float amount(int i) {
+        return i % 7 == 0? 250.0f + i % 500: 10.0f + i % 90;
+    }
+
+    private BenchmarkData() {}
+}
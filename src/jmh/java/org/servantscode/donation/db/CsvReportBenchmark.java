@@ -0,0 +1,56 @@
+package org.servantscode.donation.db;
+
+import org.openjdk.jmh.annotations.*;
+import org.servantscode.commons.db.ReportStreamingOutput;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * ReportStreamingOutput CSV formatting for a donation export, with the database taken out of the picture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CsvReportBenchmark {
+    // Same as DonationSvc's export.
+    private static final List<String> FIELDS = asList("id", "family_id", "family_name", "fund_name", "amount", "type", "date", "check_number", "transaction_id");
+
+    @Param({"100", "1000", "10000"})
+    public int rows;
+
+    private List<Map<String, Object>> data;
+    private ByteArrayOutputStream output;
+
+    @Setup
+    public void setup() {
+        data = BenchmarkData.donationRows(rows);
+        output = new ByteArrayOutputStream(rows * 128);
+    }
+
+    @Benchmark
+    public int writeCsv() throws IOException {
+        output.reset();
+        ResultSet rs = StubResultSet.of(data);
+        new ReportStreamingOutput(FIELDS) {
+            @Override
+            public void write(OutputStream out) throws IOException, WebApplicationException {
+                try {
+                    writeCsv(out, rs);
+                } catch (SQLException e) {
+                    throw new RuntimeException("Could not write benchmark csv.", e);
+                }
+            }
+        }.write(output);
+        return output.size();
+    }
+}
@@ -0,0 +1,40 @@
+package org.servantscode.donation.db;
+
+import org.openjdk.jmh.annotations.*;
+import org.servantscode.donation.Donation;
+import org.servantscode.donation.Pledge;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one result row into a model. Lives in the db package because processRow is protected.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RowMappingBenchmark {
+    private DonationDB donationDB;
+    private PledgeDB pledgeDB;
+    private ResultSet donationRow;
+    private ResultSet pledgeRow;
+
+    @Setup
+    public void setup() throws SQLException {
+        donationDB = new DonationDB();
+        pledgeDB = new PledgeDB();
+        donationRow = StubResultSet.single(BenchmarkData.donationRow(1));
+        pledgeRow = StubResultSet.single(BenchmarkData.pledgeRow(1));
+    }
+
+    @Benchmark
+    public Donation donationProcessRow() throws SQLException {
+        return donationDB.processRow(donationRow);
+    }
+
+    @Benchmark
+    public Pledge pledgeProcessRow() throws SQLException {
+        return pledgeDB.processRow(pledgeRow);
+    }
+}
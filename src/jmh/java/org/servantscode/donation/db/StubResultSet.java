@@ -0,0 +1,136 @@
+package org.servantscode.donation.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory ResultSet over a list of rows keyed by column name, so row mapping and CSV writing can be measured
+ * without a database. Only the read side used by this service is implemented.
+ */
+public class StubResultSet implements InvocationHandler {
+    private final List<Map<String, Object>> rows;
+    private final List<String> columns;
+    private int row = -1;
+    private boolean wasNull = false;
+
+    // Cursor starts before the first row, as a real result set does.
+    public static ResultSet of(List<Map<String, Object>> rows) {
+        return (ResultSet) Proxy.newProxyInstance(StubResultSet.class.getClassLoader(), new Class[] {ResultSet.class},
+                                                  new StubResultSet(rows));
+    }
+
+    // Positioned on its only row, for mapping one row repeatedly.
+    public static ResultSet single(Map<String, Object> row) throws SQLException {
+        List<Map<String, Object>> rows = new ArrayList<>(1);
+        rows.add(row);
+        ResultSet rs = of(rows);
+        rs.next();
+        return rs;
+    }
+
+    private StubResultSet(List<Map<String, Object>> rows) {
+        this.rows = rows;
+        this.columns = rows.isEmpty()? new ArrayList<>(): new ArrayList<>(rows.get(0).keySet());
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        switch (name) {
+            case "next":
+                return ++row < rows.size();
+            case "wasNull":
+                return wasNull;
+            case "findColumn":
+                return columns.indexOf(args[0]) + 1;
+            case "getMetaData":
+                return metaData();
+            case "close":
+                return null;
+            case "isClosed":
+                return false;
+            case "isWrapperFor":
+                return false;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "StubResultSet" + columns;
+        }
+
+        if(name.startsWith("get") && args != null && args.length == 1)
+            return convert(value(args[0]), method.getReturnType());
+        throw new SQLFeatureNotSupportedException(name);
+    }
+
+    // ----- Private -----
+    private Object value(Object column) {
+        String key = column instanceof Integer? columns.get((Integer) column - 1): (String) column;
+        Object value = rows.get(row).get(key);
+        wasNull = value == null;
+        return value;
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        if(type == String.class)
+            return value != null? value.toString(): null;
+        if(type == Object.class || value == null && !type.isPrimitive())
+            return value;
+
+        Number number = value instanceof Number? (Number) value: 0;
+        if(type == int.class)
+            return number.intValue();
+        if(type == long.class)
+            return number.longValue();
+        if(type == float.class)
+            return number.floatValue();
+        if(type == double.class)
+            return number.doubleValue();
+        if(type == short.class)
+            return number.shortValue();
+        if(type == boolean.class)
+            return value != null && (Boolean) value;
+        return value;
+    }
+
+    private ResultSetMetaData metaData() {
+        return (ResultSetMetaData) Proxy.newProxyInstance(StubResultSet.class.getClassLoader(),
+                new Class[] {ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return columns.size();
+                case "getColumnName":
+                case "getColumnLabel":
+                    return columns.get((Integer) args[0] - 1);
+                case "getColumnType":
+                    return sqlType(rows.isEmpty()? null: rows.get(0).get(columns.get((Integer) args[0] - 1)));
+                case "isNullable":
+                    return ResultSetMetaData.columnNullable;
+                default:
+                    throw new SQLFeatureNotSupportedException(method.getName());
+            }
+        });
+    }
+
+    private static int sqlType(Object value) {
+        if(value instanceof Integer)
+            return Types.INTEGER;
+        if(value instanceof Long)
+            return Types.BIGINT;
+        if(value instanceof Float)
+            return Types.REAL;
+        if(value instanceof Double)
+            return Types.DOUBLE;
+        if(value instanceof Date)
+            return Types.DATE;
+        if(value instanceof Timestamp)
+            return Types.TIMESTAMP;
+        return Types.VARCHAR;
+    }
+}
@@ -0,0 +1,327 @@
+package org.servantscode.donation;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.servantscode.client.FamilyServiceClient;
+import org.servantscode.commons.pdf.PdfWriter;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.db.DonationDB;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.servantscode.commons.StringUtils.isEmpty;
+import static org.servantscode.commons.pdf.PdfWriter.Alignment.*;
+import static org.servantscode.commons.pdf.PdfWriter.TextDecoration.DOUBLE_OVERLINE;
+
+/**
+ * Renders annual contribution statements. Shared by the synchronous report endpoints and background report jobs.
+ */
+public class AnnualReportWriter {
+    private static final Logger LOG = LogManager.getLogger(AnnualReportWriter.class);
+
+    private static final int REPORT_CHUNK_FAMILIES = ServiceConfig.getInt("REPORT_CHUNK_FAMILIES", 50);
+    private static final int FAMILY_LOOKUP_PARALLELISM = ServiceConfig.getInt("FAMILY_LOOKUP_PARALLELISM", 8);
+    private static final int FAMILY_LOOKUP_DEADLINE_SECONDS = ServiceConfig.getInt("FAMILY_LOOKUP_DEADLINE_SECONDS", 300);
+    private static final ExecutorService FAMILY_LOOKUP_POOL =
+            ContextExecutors.newBoundedPool("family-lookup", FAMILY_LOOKUP_PARALLELISM);
+
+    private final DonationDB db;
+    private final int orgId;
+
+    // Captures the current org so reports can be written after the request has returned.
+    public AnnualReportWriter(DonationDB db) {
+        this(db, OrganizationContext.orgId());
+    }
+
+    public AnnualReportWriter(DonationDB db, int orgId) {
+        this.db = db;
+        this.orgId = orgId;
+    }
+
+    // Families the family service does not know are left out for the caller to report. A lookup that fails or misses
+    // the deadline fails the report: a statement run must not quietly skip families.
+    public static Map<Integer, Map<String, Object>> fetchFamilies(List<Integer> familyIds, FamilyServiceClient familyClient) {
+        List<Integer> failed = new ArrayList<>();
+        Map<Integer, Map<String, Object>> families = lookupFamilies(familyIds, familyClient, failed);
+        if(!failed.isEmpty())
+            throw new RuntimeException(String.format("Could not retrieve %d of %d families for annual report: %s",
+                                                     failed.size(), familyIds.size(), failed));
+        return families;
+    }
+
+    // Family records are fetched concurrently on a bounded pool under one deadline for the whole set, so time spent
+    // queued behind a slow lookup is not charged against the others. Lookups that fail or miss the deadline are added
+    // to failed.
+    public static Map<Integer, Map<String, Object>> lookupFamilies(List<Integer> familyIds, FamilyServiceClient familyClient,
+                                                                   Collection<Integer> failed) {
+        List<Callable<Map<String, Object>>> tasks = new ArrayList<>(familyIds.size());
+        for(int familyId: familyIds)
+            tasks.add(ContextExecutors.withContext(() -> familyClient.getFamily(familyId)));
+
+        List<Future<Map<String, Object>>> lookups;
+        try {
+            lookups = FAMILY_LOOKUP_POOL.invokeAll(tasks, FAMILY_LOOKUP_DEADLINE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while retrieving families for annual report", e);
+        }
+
+        Map<Integer, Map<String, Object>> families = new HashMap<>(familyIds.size()*2);
+        for(int i=0; i<familyIds.size(); i++) {
+            int familyId = familyIds.get(i);
+            try {
+                Map<String, Object> family = lookups.get(i).get();
+                if(family != null)
+                    families.put(familyId, family);
+            } catch (CancellationException e) {
+                LOG.warn("Timed out retrieving family: " + familyId);
+                failed.add(familyId);
+            } catch (ExecutionException e) {
+                LOG.warn("Failed to retrieve family: " + familyId, e.getCause());
+                failed.add(familyId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while retrieving families for annual report", e);
+            }
+        }
+        return families;
+    }
+
+    // Donations arrive one family at a time from short batched queries, so only a batch of families' gifts is held.
+    // Pages are rendered in chunks of families, each chunk spilled to a temp file, and the chunks merged into the
+    // output through a temp file backed merge. Heap stays bounded by the chunk size rather than the parish size.
+    public void writeAllReports(int year, Map<Integer, Map<String, Object>> families, Map<String, Object> parish,
+                                OutputStream output, IntConsumer progress) throws IOException {
+        try (ChunkedReportWriter writer = new ChunkedReportWriter(parish)) {
+            int[] done = {0};
+            db.streamAnnualDonations(orgId, year, families.keySet(), (familyId, donations) -> {
+                Map<String, Object> family = families.get(familyId);
+                writer.addFamily(donations, family);
+                progress.accept(++done[0]);
+            });
+            writer.writeTo(output);
+        }
+    }
+
+    // One PDF per family, each written straight into its zip entry.
+    public void writeZippedReports(int year, Map<Integer, Map<String, Object>> families, Map<String, Object> parish,
+                                   OutputStream output, IntConsumer progress) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(output)) {
+            OutputStream entryStream = new NonClosingOutputStream(zip);
+            int[] done = {0};
+            db.streamAnnualDonations(orgId, year, families.keySet(), (familyId, donations) -> {
+                Map<String, Object> family = families.get(familyId);
+                zip.putNextEntry(new ZipEntry(String.format("donation-report-%d-%d.pdf", year, familyId)));
+                writeSingleReport(donations, family, parish, entryStream);
+                zip.closeEntry();
+                progress.accept(++done[0]);
+            });
+        }
+    }
+
+    public void writeSingleReport(List<Donation> donations, Map<String, Object> family, Map<String, Object> parish,
+                                  OutputStream output) throws IOException {
+        try (PdfWriter writer = new PdfWriter()) {
+            renderReport(donations, family, parish, writer);
+            writer.writeToStream(output);
+        }
+    }
+
+    public void renderReport(List<Donation> donations, Map<String, Object> family, Map<String, Object> parish, PdfWriter writer) throws IOException {
+        AtomicReference<Float> total = new AtomicReference<>((float) 0);
+        donations.stream().map(Donation::getAmount).forEach(a -> total.set(total.get() + a));
+
+        writer.beginText();
+        writer.setFontSize(20);
+        writer.setAlignment(CENTER);
+
+        String parishName = (String) parish.get("name");
+        writer.addLine(parishName);
+        Map<String, Object> addr = (Map<String, Object>) parish.get("address");
+        if(addr != null && addr.get("street1") != null) {
+            writer.addLine(addr.get("street1").toString());
+            writer.addLine(String.format("%s, %s %s", addr.get("city"), addr.get("state"), addr.get("zip")));
+        }
+        if(parish.get("phoneNumber") != null)
+            writer.addLine(parish.get("phoneNumber").toString());
+
+        writer.setFontSize(12);
+        writer.addLine(LocalDate.now().format(DateTimeFormatter.ofPattern("MMMM dd, yyyy")));
+        writer.addBlankLine();
+
+        writer.setFontSize(12);
+        writer.setAlignment(LEFT);
+        if(family.get("formalGreeting") == null)
+            writer.addLine("To whom it may concern: ");
+        else
+            writer.addLine(family.get("formalGreeting").toString());
+
+        Map<String, Object> familyAddr = (Map<String, Object>) family.get("address");
+        if(familyAddr != null && !isEmpty((String)familyAddr.get("street1"))) {
+            writer.addLine(familyAddr.get("street1").toString());
+            writer.addLine(String.format("%s, %s %s", familyAddr.get("city"), familyAddr.get("state"), familyAddr.get("zip")));
+        }
+
+        //St. Mary's asked to take this out 1/29/20
+//            String homePhone = (String) family.get("homePhone");
+//            if(isSet(homePhone))
+//                writer.addLine(homePhone);
+
+        writer.addBlankLine();
+        writer.addParagraph(String.format("%s,", family.get("formalGreeting")));
+        writer.addParagraph(String.format("It is time to send out financial statements so that you will have a record of your contributions for your income tax report. Your generosity over the past year has made it possible for us to continue the mission and ministry of Jesus. Were it not for your help this would be impossible. So, on behalf of %s, thank you.", parishName));
+        writer.addParagraph("Our records show that you have contributed the following amount:");
+
+        writer.addParagraph(String.format("Total Contributions: $%.2f", total.get()));
+
+        writer.addParagraph("Thank you for your past support. Your continued contributions are greatly appreciated.");
+        writer.addParagraph("Sincerely,");
+        writer.addBlankSpace(2.0f);
+        Map<String, Object> pastor = (Map<String, Object>) parish.get("pastor");
+        if(pastor != null && pastor.get("name") != null) {
+            writer.addLine(pastor.get("name").toString());
+            writer.addLine("Pastor");
+        }
+        writer.addBlankLine();
+
+        writer.addParagraph(String.format("P.S. %s has not provided, in whole or in part, any goods or services to the above named donor in exchange for this gift.", parishName));
+        writer.addParagraph(String.format("This statement is provided by %s in order to comply with the Internal Revenue Code. Retain this and your cancelled checks with your tax records.", parishName));
+        writer.endText();
+
+        if(donations.stream().anyMatch(don -> don.getAmount() > 250)) {
+            List<Donation> bigDonations = donations.stream().filter(don -> don.getAmount() >= 250).collect(Collectors.toList());
+            AtomicReference<Float> littleDonations = new AtomicReference<>(0.0f);
+            donations.stream().filter(don -> don.getAmount() < 250)
+                    .forEach(don -> littleDonations.updateAndGet(v -> v + don.getAmount()));
+
+            writer.newPage();
+            writer.beginText();
+            writer.addParagraph("Our records show that you have made the following tax deductible contributions:");
+
+            writer.startTable(new int[] {80, 200, 80, 60}, new PdfWriter.Alignment[] {LEFT, LEFT, RIGHT, LEFT});
+            writer.addTableHeader("Date", "Description", "Amount", "Check");
+
+            for(Donation don: bigDonations) {
+                writer.addTableRow(don.getDonationDate().format(DateTimeFormatter.ISO_DATE),
+                                   don.getFundName(),
+                                   String.format("$%.2f", don.getAmount()),
+                                   don.getCheckNumber() == 0? "": Long.toString(don.getCheckNumber()));
+            }
+
+            writer.addBlankSpace(.5f);
+            writer.addTableRow(new int[] {40, 240, 80, 60},
+                               "", "Total of all other deductible contributions that were less than $250.00:",
+                               String.format("$%.2f", littleDonations.get()), "");
+
+            writer.addBlankSpace(.5f);
+            writer.addDecoration(DOUBLE_OVERLINE);
+            writer.addTableRow("", "Total:", String.format("$%.2f", total.get()), "");
+            writer.removeDecoration(DOUBLE_OVERLINE);
+
+            writer.endText();
+        }
+    }
+
+    // ----- Private -----
+    private class ChunkedReportWriter implements Closeable {
+        private final Map<String, Object> parish;
+        private final List<File> chunks = new ArrayList<>();
+        private PdfWriter writer;
+        private int familiesInChunk;
+
+        private ChunkedReportWriter(Map<String, Object> parish) {
+            this.parish = parish;
+        }
+
+        public void addFamily(List<Donation> donations, Map<String, Object> family) throws IOException {
+            if(writer == null)
+                writer = new PdfWriter();
+            else
+                writer.newPage();
+
+            renderReport(donations, family, parish, writer);
+            if(++familiesInChunk >= REPORT_CHUNK_FAMILIES)
+                flushChunk();
+        }
+
+        public void writeTo(OutputStream output) throws IOException {
+            if(writer != null)
+                flushChunk();
+
+            // No families with donations still yields a valid (empty) document, as before chunking.
+            if(chunks.isEmpty()) {
+                try (PdfWriter empty = new PdfWriter()) {
+                    empty.writeToStream(output);
+                }
+                return;
+            }
+
+            if(chunks.size() == 1) {
+                Files.copy(chunks.get(0).toPath(), output);
+                return;
+            }
+
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for(File chunk: chunks)
+                merger.addSource(chunk);
+            merger.setDestinationStream(output);
+            merger.mergeDocuments(MemoryUsageSetting.setupTempFileOnly());
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+            chunks.forEach(File::delete);
+        }
+
+        private void flushChunk() throws IOException {
+            File chunk = File.createTempFile("annual-report-", ".pdf");
+            chunks.add(chunk);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(chunk))) {
+                writer.writeToStream(out);
+            } finally {
+                closeWriter();
+            }
+        }
+
+        private void closeWriter() {
+            if(writer == null)
+                return;
+
+            try {
+                writer.close();
+            } catch (Exception e) {
+                LOG.warn("Failed to close report writer", e);
+            }
+            writer = null;
+            familiesInChunk = 0;
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) { super(out); }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+
+        @Override
+        public void close() throws IOException { flush(); }
+    }
+}
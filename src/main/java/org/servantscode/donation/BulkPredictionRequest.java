@@ -0,0 +1,20 @@
+package org.servantscode.donation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BulkPredictionRequest {
+    private int fundId;
+    private List<Integer> envelopeNumbers = new ArrayList<>();
+    private List<Integer> familyIds = new ArrayList<>();
+
+    // ----- Accessors -----
+    public int getFundId() { return fundId; }
+    public void setFundId(int fundId) { this.fundId = fundId; }
+
+    public List<Integer> getEnvelopeNumbers() { return envelopeNumbers; }
+    public void setEnvelopeNumbers(List<Integer> envelopeNumbers) { this.envelopeNumbers = envelopeNumbers; }
+
+    public List<Integer> getFamilyIds() { return familyIds; }
+    public void setFamilyIds(List<Integer> familyIds) { this.familyIds = familyIds; }
+}
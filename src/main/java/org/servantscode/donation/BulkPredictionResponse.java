@@ -0,0 +1,20 @@
+package org.servantscode.donation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BulkPredictionResponse {
+    private List<DonationPrediction> predictions = new ArrayList<>();
+    private List<Integer> unknownEnvelopes = new ArrayList<>();
+    private List<Integer> unknownFamilies = new ArrayList<>();
+
+    // ----- Accessors -----
+    public List<DonationPrediction> getPredictions() { return predictions; }
+    public void setPredictions(List<DonationPrediction> predictions) { this.predictions = predictions; }
+
+    public List<Integer> getUnknownEnvelopes() { return unknownEnvelopes; }
+    public void setUnknownEnvelopes(List<Integer> unknownEnvelopes) { this.unknownEnvelopes = unknownEnvelopes; }
+
+    public List<Integer> getUnknownFamilies() { return unknownFamilies; }
+    public void setUnknownFamilies(List<Integer> unknownFamilies) { this.unknownFamilies = unknownFamilies; }
+}
@@ -0,0 +1,75 @@
+package org.servantscode.donation;
+
+import org.apache.logging.log4j.ThreadContext;
+import org.servantscode.commons.security.OrganizationContext;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pools for work that leaves the request thread. Tasks wrapped with withContext() run under the caller's
+ * organization and logging context so org scoped queries and service clients behave as they would inline.
+ */
+public class ContextExecutors {
+
+    public static ExecutorService newBoundedPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Single daemon thread for periodic housekeeping.
+    public static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static <T> Callable<T> withContext(Callable<T> task) {
+        String hostName = OrganizationContext.getOrganization().getHostName();
+        Map<String, String> logContext = ThreadContext.getImmutableContext();
+        return () -> {
+            ThreadContext.clearMap();
+            ThreadContext.putAll(logContext);
+            OrganizationContext.enableOrganization(hostName);
+            return task.call();
+        };
+    }
+
+    // For work started outside a request, such as jobs resumed at startup.
+    public static Runnable withOrganization(String hostName, Runnable task) {
+        return () -> {
+            ThreadContext.clearMap();
+            ThreadContext.put("service.name", "donation");
+            OrganizationContext.enableOrganization(hostName);
+            task.run();
+        };
+    }
+
+    public static Runnable withContext(Runnable task) {
+        Callable<Void> wrapped = withContext(() -> {
+            task.run();
+            return null;
+        });
+        return () -> {
+            try {
+                wrapped.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private ContextExecutors() {}
+}
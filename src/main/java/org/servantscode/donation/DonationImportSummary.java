@@ -0,0 +1,47 @@
+package org.servantscode.donation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DonationImportSummary {
+    public static class Rejection {
+        private int row;
+        private String reason;
+
+        public Rejection() {}
+
+        public Rejection(int row, String reason) {
+            this.row = row;
+            this.reason = reason;
+        }
+
+        // ----- Accessors -----
+        public int getRow() { return row; }
+        public void setRow(int row) { this.row = row; }
+
+        public String getReason() { return reason; }
+        public void setReason(String reason) { this.reason = reason; }
+    }
+
+    private int rows;
+    private int accepted;
+    private int duplicates;
+    private int rejected;
+    private List<Rejection> rejections = new ArrayList<>();
+
+    // ----- Accessors -----
+    public int getRows() { return rows; }
+    public void setRows(int rows) { this.rows = rows; }
+
+    public int getAccepted() { return accepted; }
+    public void setAccepted(int accepted) { this.accepted = accepted; }
+
+    public int getDuplicates() { return duplicates; }
+    public void setDuplicates(int duplicates) { this.duplicates = duplicates; }
+
+    public int getRejected() { return rejected; }
+    public void setRejected(int rejected) { this.rejected = rejected; }
+
+    public List<Rejection> getRejections() { return rejections; }
+    public void setRejections(List<Rejection> rejections) { this.rejections = rejections; }
+}
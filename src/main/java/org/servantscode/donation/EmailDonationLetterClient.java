@@ -1,70 +1,195 @@
 package org.servantscode.donation;
 
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
 import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.servantscode.commons.ConfigUtils;
-import org.servantscode.commons.EnvProperty;
 import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.commons.security.SystemJWTGenerator;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static java.util.Arrays.asList;
 
+/**
+ * Client for email-svc. All instances share one pooled, keep-alive connection manager and one system token, so
+ * constructing a client per send is cheap. The token is reused until shortly before the expiry it carries, and a 401
+ * replaces it and retries the send once.
+ */
 public class EmailDonationLetterClient {
     private static final Logger LOG = LogManager.getLogger(EmailDonationLetterClient.class);
 
-    final private Client client;
-    final private WebTarget webTarget;
-    final private String token;
-
     private static final String SERVICE_URL = "http://email-svc:8080/rest/email";
+    private static final String ANNUAL_LETTER_SUBJECT = "Annual Donation Letter";
+    private static final String ANNUAL_LETTER_MESSAGE =
+            "Thank you for your contributions to the parish. Please find your annual contribution letter attached.";
+
+    private static final int EMAIL_MAX_CONNECTIONS = ServiceConfig.getInt("EMAIL_MAX_CONNECTIONS", 16);
+    private static final int EMAIL_CONNECT_TIMEOUT_MILLIS = ServiceConfig.getInt("EMAIL_CONNECT_TIMEOUT_MILLIS", 5000);
+    private static final int EMAIL_READ_TIMEOUT_MILLIS = ServiceConfig.getInt("EMAIL_READ_TIMEOUT_MILLIS", 30000);
+    private static final long EMAIL_TOKEN_REFRESH_SECONDS = ServiceConfig.getLong("EMAIL_TOKEN_REFRESH_SECONDS", 600);
+    private static final long EMAIL_TOKEN_EXPIRY_MARGIN_SECONDS = ServiceConfig.getLong("EMAIL_TOKEN_EXPIRY_MARGIN_SECONDS", 60);
+
+    private static final Client CLIENT = buildClient();
+    private static final WebTarget WEB_TARGET = CLIENT.target(SERVICE_URL);
+    private static final JsonFactory JSON = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final ObjectMapper CLAIMS = new ObjectMapper();
+
+    private static String token;
+    private static long tokenExpires;
+
+    // The pdf is Base64 encoded as it is written into the request body rather than held as a String. It is read once
+    // per attempt, so the supplier must hand out a fresh stream each time.
+    public void sendDonationReportEmail(String to, Supplier<InputStream> pdf, String fileName) {
+        Response response = send(() -> reportEntity(to, pdf.get(), fileName));
+        checkResponse(response, to);
+    }
+
+    public void sendEmail(String from, String to, String subject, String message, Map<String, Object>... attachments) {
+        Response response = post(buildPayload(from, to, subject, message, attachments));
+        checkResponse(response, to);
+    }
+
+    public Response post(Map<String, Object> data) {
+        translateDates(data);
+        return send(() -> Entity.entity(data, MediaType.APPLICATION_JSON));
+    }
+
+    // ----- Private -----
+    private static Client buildClient() {
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(EMAIL_MAX_CONNECTIONS);
+        connections.setDefaultMaxPerRoute(EMAIL_MAX_CONNECTIONS);
+
+        ClientConfig config = new ClientConfig()
+                .register(EmailDonationLetterClient.class)
+                .connectorProvider(new ApacheConnectorProvider())
+                .property(ApacheClientProperties.CONNECTION_MANAGER, connections)
+                .property(ClientProperties.CONNECT_TIMEOUT, EMAIL_CONNECT_TIMEOUT_MILLIS)
+                .property(ClientProperties.READ_TIMEOUT, EMAIL_READ_TIMEOUT_MILLIS)
+                // Stream bodies instead of buffering them to compute Content-Length
+                .property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+        return ClientBuilder.newClient(config);
+    }
+
+    // A rejected token has most likely expired early or been rotated. Replace it and try once more.
+    private Response send(Supplier<Entity<?>> entity) {
+        String current = systemToken();
+        Response response = buildInvocation(current).post(entity.get());
+        if(response.getStatus() != Response.Status.UNAUTHORIZED.getStatusCode())
+            return response;
+
+        response.close();
+        LOG.info("Email service rejected the system token. Refreshing it and retrying.");
+        discardToken(current);
+        return buildInvocation(systemToken()).post(entity.get());
+    }
+
+    // System tokens are signed locally; reuse one until shortly before the expiry in its claims.
+    private static synchronized String systemToken() {
+        long now = System.currentTimeMillis();
+        if(token == null || now >= tokenExpires) {
+            token = SystemJWTGenerator.generateToken();
+            long expires = expiryMillis(token);
+            tokenExpires = expires > 0?
+                    Math.max(expires - TimeUnit.SECONDS.toMillis(EMAIL_TOKEN_EXPIRY_MARGIN_SECONDS), now + (expires - now)/2):
+                    now + TimeUnit.SECONDS.toMillis(EMAIL_TOKEN_REFRESH_SECONDS);
+        }
+        return token;
+    }
+
+    // Only the token that was rejected; another thread may already have replaced it.
+    private static synchronized void discardToken(String rejected) {
+        if(rejected.equals(token))
+            token = null;
+    }
 
-    public EmailDonationLetterClient() {
-        client = ClientBuilder.newClient(new ClientConfig().register(this.getClass()));
-        webTarget = client.target(SERVICE_URL);
-        this.token = SystemJWTGenerator.generateToken();
+    // The exp claim (epoch seconds) as millis, or 0 when the token doesn't carry one.
+    private static long expiryMillis(String jwt) {
+        try {
+            String[] parts = jwt.split("\\.");
+            if(parts.length < 2)
+                return 0;
+            JsonNode exp = CLAIMS.readTree(Base64.getUrlDecoder().decode(parts[1])).get("exp");
+            return exp != null && exp.canConvertToLong()? TimeUnit.SECONDS.toMillis(exp.asLong()): 0;
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("Could not read expiry from system token. Refreshing every " + EMAIL_TOKEN_REFRESH_SECONDS + "s.", e);
+            return 0;
+        }
     }
 
-    public void sendDonationReportEmail(String to, String base64File, String fileName) {
+    private Entity<StreamingOutput> reportEntity(String to, InputStream pdf, String fileName) {
         String from = ConfigUtils.getConfiguration("mail.user.account");
-        Map<String, Object> attachment = new HashMap<>(4);
-        attachment.put("fileName", fileName);
-        attachment.put("mimeType", "application/pdf");
-        attachment.put("data", base64File);
-
-        sendEmail(from, to, "Annual Donation Letter",
-                "Thank you for your contributions to the parish. Please find your annual contribution letter attached.",
-                attachment);
+        StreamingOutput body = output -> {
+            try (JsonGenerator json = JSON.createGenerator(output)) {
+                json.writeStartObject();
+                json.writeStringField("from", from);
+                json.writeArrayFieldStart("to");
+                json.writeString(to);
+                json.writeEndArray();
+                json.writeStringField("subject", ANNUAL_LETTER_SUBJECT);
+                json.writeStringField("message", ANNUAL_LETTER_MESSAGE);
+                json.writeArrayFieldStart("attachments");
+                json.writeStartObject();
+                json.writeStringField("fileName", fileName);
+                json.writeStringField("mimeType", "application/pdf");
+                json.writeFieldName("data");
+                json.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, pdf, -1);
+                json.writeEndObject();
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+        };
+        return Entity.entity(body, MediaType.APPLICATION_JSON);
     }
 
-    public void sendEmail(String from, String to, String subject, String message, Map<String, Object>... attachments) {
+    private Map<String, Object> buildPayload(String from, String to, String subject, String message, Map<String, Object>[] attachments) {
         Map<String, Object> payload = new HashMap<>();
         payload.put("from", from);
         payload.put("to", asList(to));
         payload.put("subject", subject);
         payload.put("message", message);
         payload.put("attachments", attachments);
-        post(payload);
+        return payload;
     }
 
-    public Response post(Map<String, Object> data) {
-        translateDates(data);
-        return buildInvocation()
-                .post(Entity.entity(data, MediaType.APPLICATION_JSON));
+    // Always close the response so the connection goes back to the pool. The status travels with the exception so
+    // callers can tell a rejected message from a transient failure.
+    private void checkResponse(Response response, String to) {
+        try {
+            if(response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL)
+                throw new WebApplicationException(String.format("Email service rejected message to %s: %d", to, response.getStatus()),
+                                                  response.getStatus());
+        } finally {
+            response.close();
+        }
     }
 
-    // ----- Private -----
     private void translateDates(Map<String, Object> data) {
         data.entrySet().forEach( (entry) -> {
             Object obj = entry.getValue();
@@ -80,8 +205,8 @@ public class EmailDonationLetterClient {
         });
     }
 
-    private Invocation.Builder buildInvocation(Map<String, Object>... optionalParams) {
-        WebTarget target = webTarget;
+    private Invocation.Builder buildInvocation(String bearer, Map<String, Object>... optionalParams) {
+        WebTarget target = WEB_TARGET;
 
         if(optionalParams.length > 0) {
             Map<String, Object> params = optionalParams[0];
@@ -92,6 +217,6 @@ public class EmailDonationLetterClient {
         return target.request(MediaType.APPLICATION_JSON)
                 .header("x-sc-org", OrganizationContext.getOrganization().getHostName())
                 .header("x-sc-transaction-id", ThreadContext.get("transaction.id"))
-                .header("Authorization", "Bearer " + token);
+                .header("Authorization", "Bearer " + bearer);
     }
 }
@@ -0,0 +1,37 @@
+package org.servantscode.donation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token for keyset paging. Carries the sort key and id of the last row on a page so the next
+ * page can seek past it instead of using OFFSET.
+ */
+public class PageCursor {
+    private final String key;
+    private final long id;
+
+    public PageCursor(String key, long id) {
+        this.key = key == null? "": key;
+        this.id = id;
+    }
+
+    public String encode() {
+        String raw = id + ":" + key;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static PageCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int split = raw.indexOf(':');
+            return new PageCursor(raw.substring(split + 1), Long.parseLong(raw.substring(0, split)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid page cursor: " + token, e);
+        }
+    }
+
+    // ----- Accessors -----
+    public String getKey() { return key; }
+    public long getId() { return id; }
+}
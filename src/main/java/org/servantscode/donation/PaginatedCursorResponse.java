@@ -0,0 +1,28 @@
+package org.servantscode.donation;
+
+import org.servantscode.commons.rest.PaginatedResponse;
+
+import java.util.List;
+
+/**
+ * A page that may come from keyset paging or carry an estimated count. totalResults is -1 on cursor pages after the
+ * first, which skip counting; follow nextCursor until it is absent instead. When countEstimated is set, totalResults
+ * comes from the planner and is approximate.
+ */
+public class PaginatedCursorResponse<T> extends PaginatedResponse<T> {
+    public static final int COUNT_NOT_COMPUTED = -1;
+
+    private String nextCursor;
+    private boolean countEstimated;
+
+    public PaginatedCursorResponse(int start, int size, int totalResults, List<T> results) {
+        super(start, size, totalResults, results);
+    }
+
+    // ----- Accessors -----
+    public String getNextCursor() { return nextCursor; }
+    public void setNextCursor(String nextCursor) { this.nextCursor = nextCursor; }
+
+    public boolean isCountEstimated() { return countEstimated; }
+    public void setCountEstimated(boolean countEstimated) { this.countEstimated = countEstimated; }
+}
@@ -1,18 +1,17 @@
 package org.servantscode.donation;
 
-import org.servantscode.commons.rest.PaginatedResponse;
-
 import java.util.List;
 
-public class PaginatedDonationResponse extends PaginatedResponse<Donation> {
-    private float totalDonationValue;
+public class PaginatedDonationResponse extends PaginatedCursorResponse<Donation> {
+    // Null when the match set was not summed: estimated counts and cursor pages after the first.
+    private Float totalDonationValue;
 
-    public PaginatedDonationResponse(int start, int size, int totalDonations, List<Donation> donations, float totalDonationValue) {
+    public PaginatedDonationResponse(int start, int size, int totalDonations, List<Donation> donations, Float totalDonationValue) {
         super(start, size, totalDonations, donations);
         this.totalDonationValue = totalDonationValue;
     }
 
     // ----- Accessors -----
-    public float getTotalDonationValue() { return totalDonationValue; }
-    public void setTotalDonationValue(float totalDonationValue) { this.totalDonationValue = totalDonationValue; }
+    public Float getTotalDonationValue() { return totalDonationValue; }
+    public void setTotalDonationValue(Float totalDonationValue) { this.totalDonationValue = totalDonationValue; }
 }
@@ -0,0 +1,20 @@
+package org.servantscode.donation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Holds a rendered document and hands out readers over the same bytes, so the document can be sent (or resent)
+ * without toByteArray() copies.
+ */
+public class ReportBuffer extends ByteArrayOutputStream {
+
+    public ReportBuffer() {
+        super(32 * 1024);
+    }
+
+    public synchronized InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
@@ -0,0 +1,63 @@
+package org.servantscode.donation;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.ZonedDateTime;
+
+public class ReportJob {
+    public enum JobStatus {QUEUED, RUNNING, COMPLETE, FAILED, EXPIRED};
+    public enum ReportFormat {PDF, ZIP};
+
+    private int id;
+    private int year;
+    private ReportFormat format;
+    private JobStatus status;
+    private int familiesDone;
+    private int familiesTotal;
+    private String message;
+    private int requesterId;
+    private ZonedDateTime createdTime;
+    private ZonedDateTime completedTime;
+
+    @JsonIgnore private String artifactPath;
+    @JsonIgnore private String orgHost;
+
+    // ----- Accessors -----
+    public int getId() { return id; }
+    public void setId(int id) { this.id = id; }
+
+    public int getYear() { return year; }
+    public void setYear(int year) { this.year = year; }
+
+    public ReportFormat getFormat() { return format; }
+    public void setFormat(ReportFormat format) { this.format = format; }
+    public void setFormat(String format) { this.format = ReportFormat.valueOf(format); }
+
+    public JobStatus getStatus() { return status; }
+    public void setStatus(JobStatus status) { this.status = status; }
+    public void setStatus(String status) { this.status = JobStatus.valueOf(status); }
+
+    public int getFamiliesDone() { return familiesDone; }
+    public void setFamiliesDone(int familiesDone) { this.familiesDone = familiesDone; }
+
+    public int getFamiliesTotal() { return familiesTotal; }
+    public void setFamiliesTotal(int familiesTotal) { this.familiesTotal = familiesTotal; }
+
+    public String getMessage() { return message; }
+    public void setMessage(String message) { this.message = message; }
+
+    public int getRequesterId() { return requesterId; }
+    public void setRequesterId(int requesterId) { this.requesterId = requesterId; }
+
+    public ZonedDateTime getCreatedTime() { return createdTime; }
+    public void setCreatedTime(ZonedDateTime createdTime) { this.createdTime = createdTime; }
+
+    public ZonedDateTime getCompletedTime() { return completedTime; }
+    public void setCompletedTime(ZonedDateTime completedTime) { this.completedTime = completedTime; }
+
+    @JsonIgnore public String getArtifactPath() { return artifactPath; }
+    @JsonIgnore public void setArtifactPath(String artifactPath) { this.artifactPath = artifactPath; }
+
+    @JsonIgnore public String getOrgHost() { return orgHost; }
+    @JsonIgnore public void setOrgHost(String orgHost) { this.orgHost = orgHost; }
+}
@@ -0,0 +1,221 @@
+package org.servantscode.donation;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.servantscode.client.ApiClientFactory;
+import org.servantscode.client.FamilyServiceClient;
+import org.servantscode.client.ParishServiceClient;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.ReportJob.ReportFormat;
+import org.servantscode.donation.db.DonationDB;
+import org.servantscode.donation.db.ReportJobDB;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs annual report generation outside the request. Jobs are recorded in donation_report_jobs so status survives a
+ * restart. Each job is owned by the instance running it (REPORT_JOB_OWNER, the pod name by default). Interrupted jobs
+ * are restarted from the beginning by whichever instance claims them first: the same instance when it comes back up,
+ * or any instance once the job has had no heartbeat for REPORT_JOB_STALE_MINUTES. Artifacts are written to
+ * REPORT_JOB_DIR, which must be persistent storage shared by every instance, since a download or the sweep may land
+ * on an instance other than the one that wrote the file. kube.yml claims it ReadWriteMany.
+ *
+ * A periodic sweep fails running jobs that stop reporting progress, expires artifacts after REPORT_JOB_RETENTION_DAYS
+ * (or as soon as their file is found missing) and deletes failed and expired job history after REPORT_JOB_HISTORY_DAYS.
+ */
+public class ReportJobManager implements ServletContextListener {
+    private static final Logger LOG = LogManager.getLogger(ReportJobManager.class);
+
+    private static final int REPORT_JOB_THREADS = ServiceConfig.getInt("REPORT_JOB_THREADS", 2);
+    private static final String REPORT_JOB_DIR = ServiceConfig.getString("REPORT_JOB_DIR", "/var/lib/donation-svc/report-jobs");
+    private static final int RETENTION_DAYS = ServiceConfig.getInt("REPORT_JOB_RETENTION_DAYS", 7);
+    private static final int HISTORY_DAYS = ServiceConfig.getInt("REPORT_JOB_HISTORY_DAYS", 90);
+    private static final int STALE_MINUTES = ServiceConfig.getInt("REPORT_JOB_STALE_MINUTES", 30);
+    private static final int SWEEP_MINUTES = ServiceConfig.getInt("REPORT_JOB_SWEEP_MINUTES", 15);
+    private static final int PROGRESS_INTERVAL = 25;
+    private static final String OWNER = ServiceConfig.getString("REPORT_JOB_OWNER",
+                                                                ServiceConfig.getString("HOSTNAME", UUID.randomUUID().toString()));
+
+    private static final ExecutorService JOB_POOL = ContextExecutors.newBoundedPool("report-job", REPORT_JOB_THREADS);
+    private static final ScheduledExecutorService SWEEPER = ContextExecutors.newScheduler("report-job-sweep");
+    private static final Map<Integer, Future<?>> RUNNING = new ConcurrentHashMap<>();
+
+    private final ReportJobDB jobDB = new ReportJobDB();
+
+    @Override
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        try {
+            resumeUnclaimedJobs();
+        } catch (Throwable t) {
+            LOG.error("Could not resume annual report jobs.", t);
+        }
+
+        SWEEPER.scheduleWithFixedDelay(this::sweep, 1, SWEEP_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        SWEEPER.shutdownNow();
+        JOB_POOL.shutdownNow();
+    }
+
+    // Returns null if the org already has a job queued or running.
+    public ReportJob submit(int year, ReportFormat format, int requesterId) {
+        ReportJob job = new ReportJob();
+        job.setYear(year);
+        job.setFormat(format);
+        job.setRequesterId(requesterId);
+        job.setOrgHost(OrganizationContext.getOrganization().getHostName());
+
+        if(jobDB.createJob(job, OWNER) == null)
+            return null;
+
+        start(job, ContextExecutors.withContext(() -> runJob(job)));
+        return job;
+    }
+
+    // Called when a download finds the artifact missing.
+    public static void expireMissingArtifact(ReportJob job) {
+        LOG.warn(String.format("Artifact for annual report job %d is missing: %s", job.getId(), job.getArtifactPath()));
+        new ReportJobDB().markExpired(job.getId(), "Report file is no longer available.");
+    }
+
+    // ----- Private -----
+    // Jobs still live on another instance fail the claim and are left alone.
+    private void resumeUnclaimedJobs() {
+        for(ReportJob job: jobDB.getUnfinishedJobs()) {
+            if(RUNNING.containsKey(job.getId()) || !jobDB.claim(job.getId(), OWNER, STALE_MINUTES))
+                continue;
+            LOG.info(String.format("Resuming annual report job %d for %s", job.getId(), job.getOrgHost()));
+            start(job, ContextExecutors.withOrganization(job.getOrgHost(), () -> runJob(job)));
+        }
+    }
+
+    private void start(ReportJob job, Runnable task) {
+        RUNNING.put(job.getId(), JOB_POOL.submit(task));
+    }
+
+    private void runJob(ReportJob job) {
+        int jobId = job.getId();
+        try {
+            DonationDB db = new DonationDB();
+            List<Integer> familyIds = db.getContributingFamilies(job.getYear());
+
+            ApiClientFactory.instance().authenticateAsSystem();
+            Map<String, Object> parish = new ParishServiceClient().getParishForOrg(OrganizationContext.orgId());
+            Map<Integer, Map<String, Object>> families = AnnualReportWriter.fetchFamilies(familyIds, new FamilyServiceClient());
+            for(int familyId: familyIds) {
+                if(!families.containsKey(familyId))
+                    LOG.error("failed to find family for donations with id: " + familyId);
+            }
+
+            jobDB.markRunning(jobId, families.size());
+
+            Path dir = Paths.get(REPORT_JOB_DIR);
+            Files.createDirectories(dir);
+            String extension = job.getFormat() == ReportFormat.ZIP? "zip": "pdf";
+            Path artifact = dir.resolve(String.format("donation-reports-%d-%d.%s", jobId, job.getYear(), extension));
+            Path partial = dir.resolve(artifact.getFileName() + ".part");
+
+            AnnualReportWriter writer = new AnnualReportWriter(db);
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                if(job.getFormat() == ReportFormat.ZIP)
+                    writer.writeZippedReports(job.getYear(), families, parish, output, done -> reportProgress(jobId, done));
+                else
+                    writer.writeAllReports(job.getYear(), families, parish, output, done -> reportProgress(jobId, done));
+            }
+            Files.move(partial, artifact, StandardCopyOption.REPLACE_EXISTING);
+
+            if(!jobDB.markComplete(jobId, OWNER, families.size(), artifact.toString())) {
+                LOG.warn(String.format("Annual report job %d finished after it was failed. Discarding %s", jobId, artifact));
+                Files.deleteIfExists(artifact);
+                return;
+            }
+            LOG.info(String.format("Annual report job %d complete. %d families written to %s", jobId, families.size(), artifact));
+        } catch (Throwable t) {
+            LOG.error("Annual report job failed: " + jobId, t);
+            try {
+                jobDB.markFailed(jobId, t.getMessage());
+            } catch (Throwable t2) {
+                LOG.error("Could not record failure for annual report job: " + jobId, t2);
+            }
+        } finally {
+            RUNNING.remove(jobId);
+        }
+    }
+
+    private void sweep() {
+        try {
+            for(int jobId: jobDB.failStalledJobs(STALE_MINUTES)) {
+                LOG.warn(String.format("Annual report job %d made no progress for %d minutes. Failing it.", jobId, STALE_MINUTES));
+                Future<?> running = RUNNING.remove(jobId);
+                if(running != null)
+                    running.cancel(true);
+            }
+            RUNNING.values().removeIf(Future::isDone);
+
+            // Keep this instance's waiting jobs claimed and pick up queued jobs left behind by an instance that died.
+            jobDB.heartbeatQueuedJobs(OWNER);
+            resumeUnclaimedJobs();
+
+            ZonedDateTime expiry = ZonedDateTime.now().minusDays(RETENTION_DAYS);
+            for(ReportJob job: jobDB.getCompletedJobs()) {
+                Path artifact = job.getArtifactPath() != null? Paths.get(job.getArtifactPath()): null;
+                if(artifact == null || !Files.isRegularFile(artifact)) {
+                    expireMissingArtifact(job);
+                } else if(job.getCompletedTime() != null && job.getCompletedTime().isBefore(expiry)) {
+                    Files.deleteIfExists(artifact);
+                    jobDB.markExpired(job.getId(), String.format("Report file removed after %d days.", RETENTION_DAYS));
+                }
+            }
+
+            int deleted = jobDB.deleteFinishedJobs(HISTORY_DAYS);
+            if(deleted > 0)
+                LOG.info(String.format("Deleted %d finished annual report jobs.", deleted));
+
+            deleteAbandonedParts();
+        } catch (Throwable t) {
+            LOG.error("Annual report job sweep failed.", t);
+        }
+    }
+
+    // Partial files are written continuously while a job runs, so an old one belongs to a job that died.
+    private void deleteAbandonedParts() throws IOException {
+        Path dir = Paths.get(REPORT_JOB_DIR);
+        if(!Files.isDirectory(dir))
+            return;
+
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(STALE_MINUTES);
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(dir, "*.part")) {
+            for(Path part: parts) {
+                if(Files.getLastModifiedTime(part).toMillis() < cutoff) {
+                    LOG.info("Deleting abandoned report file: " + part);
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    private void reportProgress(int jobId, int familiesDone) {
+        if(familiesDone % PROGRESS_INTERVAL == 0)
+            jobDB.updateProgress(jobId, familiesDone);
+    }
+}
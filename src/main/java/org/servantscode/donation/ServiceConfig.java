@@ -0,0 +1,37 @@
+package org.servantscode.donation;
+
+import static org.servantscode.commons.StringUtils.isSet;
+
+public class ServiceConfig {
+
+    //Service level tuning knobs. Read from the environment (see kube.yml) with a system property override
+    //so they can be adjusted per deployment without touching org configuration.
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if(!isSet(value))
+            value = System.getenv(name);
+        return isSet(value)? value.trim(): defaultValue;
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(name, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        try {
+            return Long.parseLong(getString(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(name, Boolean.toString(defaultValue)));
+    }
+
+    private ServiceConfig() {}
+}
@@ -0,0 +1,88 @@
+package org.servantscode.donation;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StatementEmailRun {
+    public enum RunStatus {RUNNING, COMPLETE, FAILED};
+
+    private final int year;
+    private final ZonedDateTime startedTime = ZonedDateTime.now();
+    private volatile ZonedDateTime completedTime;
+    private volatile RunStatus status = RunStatus.RUNNING;
+    private volatile String message;
+    private volatile int familiesTotal;
+
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger noEmail = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicLong renderMillis = new AtomicLong();
+    private final AtomicLong sendMillis = new AtomicLong();
+
+    public StatementEmailRun(int year) {
+        this.year = year;
+    }
+
+    public void recordSent(long renderTime, long sendTime) {
+        sent.incrementAndGet();
+        renderMillis.addAndGet(renderTime);
+        sendMillis.addAndGet(sendTime);
+    }
+
+    public void recordNoEmail() { noEmail.incrementAndGet(); }
+    public void recordFailed() { failed.incrementAndGet(); }
+    public void recordRetry() { retries.incrementAndGet(); }
+
+    public void finish(RunStatus status, String message) {
+        this.status = status;
+        this.message = message;
+        this.completedTime = ZonedDateTime.now();
+    }
+
+    public boolean isRunning() { return status == RunStatus.RUNNING; }
+
+    // ----- Metrics -----
+    public int getFamiliesDone() { return sent.get() + noEmail.get() + failed.get(); }
+
+    public double getElapsedSeconds() {
+        ZonedDateTime end = completedTime != null? completedTime: ZonedDateTime.now();
+        return Duration.between(startedTime, end).toMillis()/1000.0;
+    }
+
+    public double getSentPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed > 0? sent.get()/elapsed: 0;
+    }
+
+    public long getAverageRenderMillis() {
+        int count = sent.get();
+        return count > 0? renderMillis.get()/count: 0;
+    }
+
+    public long getAverageSendMillis() {
+        int count = sent.get();
+        return count > 0? sendMillis.get()/count: 0;
+    }
+
+    // ----- Accessors -----
+    public int getYear() { return year; }
+    public ZonedDateTime getStartedTime() { return startedTime; }
+    public ZonedDateTime getCompletedTime() { return completedTime; }
+    public RunStatus getStatus() { return status; }
+    public String getMessage() { return message; }
+
+    public int getFamiliesTotal() { return familiesTotal; }
+    public void setFamiliesTotal(int familiesTotal) { this.familiesTotal = familiesTotal; }
+
+    public int getSkipped() { return skipped.get(); }
+    public void setSkipped(int skipped) { this.skipped.set(skipped); }
+
+    public int getSent() { return sent.get(); }
+    public int getNoEmail() { return noEmail.get(); }
+    public int getFailed() { return failed.get(); }
+    public int getRetries() { return retries.get(); }
+}
@@ -0,0 +1,244 @@
+package org.servantscode.donation;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.servantscode.client.ApiClientFactory;
+import org.servantscode.client.FamilyServiceClient;
+import org.servantscode.client.ParishServiceClient;
+import org.servantscode.client.PersonServiceClient;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.StatementEmailRun.RunStatus;
+import org.servantscode.donation.db.DonationDB;
+import org.servantscode.donation.db.StatementEmailDB;
+import org.servantscode.donation.db.StatementEmailDB.Outcome;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import static org.servantscode.commons.StringUtils.isEmpty;
+
+/**
+ * Emails annual statements to every contributing family for a year. Statements are rendered and sent on a bounded
+ * pool, paced to STATEMENT_EMAIL_RATE_PER_SECOND toward email-svc, and each family's outcome is recorded in
+ * donation_statement_emails so a second run only sends to families that have not yet received their statement.
+ * Family records are looked up together and donations streamed in family batches, as for the annual report.
+ * Connection failures, 5xx and 429 responses are retried with backoff; any other rejection is recorded as permanent.
+ */
+public class StatementEmailer {
+    private static final Logger LOG = LogManager.getLogger(StatementEmailer.class);
+
+    private static final int STATEMENT_EMAIL_THREADS = ServiceConfig.getInt("STATEMENT_EMAIL_THREADS", 4);
+    private static final double STATEMENT_EMAIL_RATE_PER_SECOND = Double.parseDouble(ServiceConfig.getString("STATEMENT_EMAIL_RATE_PER_SECOND", "5"));
+    private static final int STATEMENT_EMAIL_MAX_ATTEMPTS = ServiceConfig.getInt("STATEMENT_EMAIL_MAX_ATTEMPTS", 4);
+    private static final long STATEMENT_EMAIL_BACKOFF_MILLIS = ServiceConfig.getLong("STATEMENT_EMAIL_BACKOFF_MILLIS", 1000);
+    private static final long STATEMENT_EMAIL_MAX_BACKOFF_MILLIS = 60_000;
+
+    private static final ExecutorService RUN_POOL = ContextExecutors.newBoundedPool("statement-email-run", 2);
+    private static final ExecutorService SEND_POOL = ContextExecutors.newBoundedPool("statement-email", STATEMENT_EMAIL_THREADS);
+    private static final RateLimiter SEND_RATE = new RateLimiter(STATEMENT_EMAIL_RATE_PER_SECOND);
+
+    // Latest run per org, kept for status reporting.
+    private static final Map<String, StatementEmailRun> RUNS = new ConcurrentHashMap<>();
+
+    private final DonationDB donationDB = new DonationDB();
+    private final StatementEmailDB emailDB = new StatementEmailDB();
+
+    // Returns null if a run is already in progress for this org.
+    public StatementEmailRun start(int year) {
+        String orgHost = OrganizationContext.getOrganization().getHostName();
+        StatementEmailRun run = new StatementEmailRun(year);
+        StatementEmailRun current = RUNS.compute(orgHost, (host, existing) ->
+                existing != null && existing.isRunning()? existing: run);
+        if(current != run)
+            return null;
+
+        RUN_POOL.submit(ContextExecutors.withContext(() -> execute(run)));
+        return run;
+    }
+
+    public StatementEmailRun getRun() {
+        return RUNS.get(OrganizationContext.getOrganization().getHostName());
+    }
+
+    public static String findHeadOfHouseholdEmail(Map<String, Object> family, PersonServiceClient personClient) {
+        List<Map<String, Object>> familyMembers = (List<Map<String, Object>>) family.get("members");
+        int headId=0;
+        if(familyMembers != null) {
+            Optional<Map<String, Object>> head = familyMembers.stream().filter(fm -> (boolean) fm.get("headOfHousehold")).findFirst();
+            if(!head.isPresent())
+                throw new RuntimeException("Could not get family head record");
+
+            headId = (int)head.get().get("id");
+        }
+
+        Map<String, Object> head = personClient.getPersonById(headId);
+        return head != null && head.containsKey("email")? (String)head.get("email"): null;
+    }
+
+    // ----- Private -----
+    private void execute(StatementEmailRun run) {
+        int year = run.getYear();
+        try {
+            Set<Integer> alreadySent = emailDB.getSettledFamilies(year);
+            List<Integer> familyIds = donationDB.getContributingFamilies(year).stream()
+                    .filter(id -> !alreadySent.contains(id))
+                    .collect(Collectors.toList());
+            run.setSkipped(alreadySent.size());
+            run.setFamiliesTotal(familyIds.size());
+            LOG.info(String.format("Emailing %d annual statements for %d. %d families already settled.", familyIds.size(), year, alreadySent.size()));
+
+            ApiClientFactory.instance().authenticateAsSystem();
+            FamilyServiceClient familyClient = new FamilyServiceClient();
+            PersonServiceClient personClient = new PersonServiceClient();
+            Map<String, Object> parish = new ParishServiceClient().getParishForOrg(OrganizationContext.orgId());
+            EmailDonationLetterClient emailClient = new EmailDonationLetterClient();
+            AnnualReportWriter writer = new AnnualReportWriter(donationDB);
+
+            Set<Integer> failedLookups = new HashSet<>();
+            Map<Integer, Map<String, Object>> families = AnnualReportWriter.lookupFamilies(familyIds, familyClient, failedLookups);
+            for(int familyId: familyIds) {
+                if(failedLookups.contains(familyId))
+                    recordFailure(run, familyId, null, 0, "Could not retrieve family");
+                else if(!families.containsKey(familyId))
+                    recordFailure(run, familyId, null, 0, "Could not find family");
+            }
+
+            // Hold at most a few statements per worker in memory at once.
+            Semaphore inFlight = new Semaphore(STATEMENT_EMAIL_THREADS * 2);
+            donationDB.streamAnnualDonations(OrganizationContext.orgId(), year, families.keySet(), (familyId, donations) -> {
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while queueing annual statements", e);
+                }
+                try {
+                    Map<String, Object> family = families.get(familyId);
+                    SEND_POOL.submit(ContextExecutors.withContext(() -> {
+                        try {
+                            sendStatement(run, familyId, family, donations, writer, parish, personClient, emailClient);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            });
+            inFlight.acquire(STATEMENT_EMAIL_THREADS * 2);
+
+            run.finish(RunStatus.COMPLETE, null);
+            LOG.info(String.format("Annual statement emails for %d complete. sent: %d, no email: %d, failed or rejected: %d, retries: %d in %.1fs (%.2f/s)",
+                    year, run.getSent(), run.getNoEmail(), run.getFailed(), run.getRetries(), run.getElapsedSeconds(), run.getSentPerSecond()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            run.finish(RunStatus.FAILED, "Interrupted");
+        } catch (Throwable t) {
+            LOG.error("Annual statement email run failed for year: " + year, t);
+            run.finish(RunStatus.FAILED, t.getMessage());
+        }
+    }
+
+    private void sendStatement(StatementEmailRun run, int familyId, Map<String, Object> family, List<Donation> donations,
+                               AnnualReportWriter writer, Map<String, Object> parish, PersonServiceClient personClient,
+                               EmailDonationLetterClient emailClient) {
+        int year = run.getYear();
+        String email = null;
+        int attempts = 0;
+        try {
+            email = findHeadOfHouseholdEmail(family, personClient);
+            if(isEmpty(email)) {
+                emailDB.recordOutcome(year, familyId, Outcome.NO_EMAIL, null, 0, null);
+                run.recordNoEmail();
+                return;
+            }
+
+            long renderStart = System.currentTimeMillis();
+            ReportBuffer pdf = new ReportBuffer();
+            writer.writeSingleReport(donations, family, parish, pdf);
+            long renderTime = System.currentTimeMillis() - renderStart;
+
+            long sendStart = System.currentTimeMillis();
+            long backoff = STATEMENT_EMAIL_BACKOFF_MILLIS;
+            while(true) {
+                attempts++;
+                SEND_RATE.acquire();
+                try {
+                    emailClient.sendDonationReportEmail(email, pdf::toInputStream, "donation-report.pdf");
+                    break;
+                } catch (WebApplicationException | ProcessingException e) {
+                    if(!isTransient(e)) {
+                        LOG.warn(String.format("Statement email to family %d rejected: %s", familyId, e.getMessage()));
+                        emailDB.recordOutcome(year, familyId, Outcome.REJECTED, email, attempts, e.getMessage());
+                        run.recordFailed();
+                        return;
+                    }
+                    if(attempts >= STATEMENT_EMAIL_MAX_ATTEMPTS)
+                        throw e;
+                    LOG.warn(String.format("Statement email to family %d failed (attempt %d). Retrying in %dms.", familyId, attempts, backoff));
+                    run.recordRetry();
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff*2, STATEMENT_EMAIL_MAX_BACKOFF_MILLIS);
+                }
+            }
+
+            emailDB.recordOutcome(year, familyId, Outcome.SENT, email, attempts, null);
+            run.recordSent(renderTime, System.currentTimeMillis() - sendStart);
+        } catch (Throwable t) {
+            if(t instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            LOG.error("Failed to email annual statement to family: " + familyId, t);
+            recordFailure(run, familyId, email, attempts, t.getMessage());
+        }
+    }
+
+    private void recordFailure(StatementEmailRun run, int familyId, String email, int attempts, String message) {
+        run.recordFailed();
+        try {
+            emailDB.recordOutcome(run.getYear(), familyId, Outcome.FAILED, email, attempts, message);
+        } catch (Throwable t) {
+            LOG.error("Could not record email failure for family: " + familyId, t);
+        }
+    }
+
+    // Connection trouble, server errors and throttling may clear up; any other 4xx will be refused again.
+    private static boolean isTransient(RuntimeException e) {
+        if(e instanceof ProcessingException)
+            return true;
+        int status = ((WebApplicationException) e).getResponse().getStatus();
+        return status >= 500 || status == 429;
+    }
+
+    // Spaces calls at least 1/rate seconds apart across all workers.
+    private static class RateLimiter {
+        private final long intervalNanos;
+        private long nextFree = System.nanoTime();
+
+        RateLimiter(double perSecond) {
+            this.intervalNanos = perSecond > 0? (long) (1_000_000_000L/perSecond): 0;
+        }
+
+        void acquire() throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextFree);
+                nextFree = slot + intervalNanos;
+                wait = slot - now;
+            }
+            if(wait > 0)
+                Thread.sleep(wait/1_000_000, (int) (wait%1_000_000));
+        }
+    }
+}
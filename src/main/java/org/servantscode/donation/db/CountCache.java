@@ -0,0 +1,123 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.ServiceConfig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Match counts (and totals) for list endpoints keyed by org, endpoint and normalized search.
+ *
+ * Any donation or pledge write drops every entry for the org and bumps its generation. Callers read generation() before
+ * counting and pass it to put(), so a count that raced a write is never served. Entries also expire after a TTL so
+ * writes made directly against the database are eventually picked up.
+ *
+ * Unfiltered listings may instead use a planner estimate once the org has more than COUNT_ESTIMATE_THRESHOLD rows.
+ * Estimated counts carry no total value.
+ */
+public class CountCache {
+    private static final long TTL_MILLIS = ServiceConfig.getLong("COUNT_CACHE_TTL_SECONDS", 300) * 1000;
+    private static final int MAX_ENTRIES_PER_ORG = ServiceConfig.getInt("COUNT_CACHE_MAX_ENTRIES", 256);
+
+    private static final long ESTIMATE_THRESHOLD = ServiceConfig.getLong("COUNT_ESTIMATE_THRESHOLD", 100000);
+    private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+    private static final Map<Integer, Map<String, Counts>> CACHE = new ConcurrentHashMap<>();
+    private static final Map<Integer, AtomicLong> GENERATIONS = new ConcurrentHashMap<>();
+
+    public static class Counts {
+        private final int count;
+        private final float total;
+        private final boolean estimated;
+        private final long created = System.currentTimeMillis();
+        private long generation;
+
+        public Counts(int count, float total, boolean estimated) {
+            this.count = count;
+            this.total = total;
+            this.estimated = estimated;
+        }
+
+        public int getCount() { return count; }
+        public float getTotal() { return total; }
+        public boolean isEstimated() { return estimated; }
+    }
+
+    public static Counts get(String endpoint, String search) {
+        Map<String, Counts> orgCounts = CACHE.get(OrganizationContext.orgId());
+        if(orgCounts == null)
+            return null;
+
+        String key = key(endpoint, search);
+        Counts counts = orgCounts.get(key);
+        if(counts != null && (System.currentTimeMillis() - counts.created > TTL_MILLIS || counts.generation != generation())) {
+            orgCounts.remove(key);
+            return null;
+        }
+        return counts;
+    }
+
+    // Read before running the count that will be put().
+    public static long generation() {
+        return generation(OrganizationContext.orgId()).get();
+    }
+
+    // Dropped if a write has invalidated the org since the count started.
+    public static void put(String endpoint, String search, long generation, Counts counts) {
+        if(generation != generation())
+            return;
+        counts.generation = generation;
+        CACHE.computeIfAbsent(OrganizationContext.orgId(), org -> lruMap()).put(key(endpoint, search), counts);
+    }
+
+    public static void invalidate() {
+        generation(OrganizationContext.orgId()).incrementAndGet();
+        CACHE.remove(OrganizationContext.orgId());
+    }
+
+    // Planner estimate of the org's rows in table. Only meaningful for unfiltered listings.
+    public static Counts estimate(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN SELECT 1 FROM " + table + " WHERE org_id=?")) {
+            stmt.setInt(1, OrganizationContext.orgId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                Matcher m = rs.next()? PLAN_ROWS.matcher(rs.getString(1)): null;
+                if(m == null || !m.find())
+                    return null;
+
+                long rows = Long.parseLong(m.group(1));
+                return rows >= ESTIMATE_THRESHOLD? new Counts((int) Math.min(rows, Integer.MAX_VALUE), 0f, true): null;
+            }
+        }
+    }
+
+    // ----- Private -----
+    private static AtomicLong generation(int orgId) {
+        return GENERATIONS.computeIfAbsent(orgId, org -> new AtomicLong());
+    }
+
+    private static String key(String endpoint, String search) {
+        String normalized = search == null? "": search.trim().replaceAll("\\s+", " ");
+        return endpoint + "|" + normalized;
+    }
+
+    private static Map<String, Counts> lruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, Counts>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Counts> eldest) {
+                return size() > MAX_ENTRIES_PER_ORG;
+            }
+        });
+    }
+
+    private CountCache() {}
+}
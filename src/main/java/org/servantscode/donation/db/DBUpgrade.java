@@ -69,6 +69,251 @@ public class DBUpgrade extends AbstractDBUpgrade {
             ensureColumn("donations", "pledge_id", "INTEGER REFERENCES pledges(id) ON DELETE SET NULL");
             runSql("update donations d set pledge_id = (select id from pledges p where p.fund_id=d.fund_id AND d.family_id=p.family_id AND d.date >= p.pledge_start and d.date <= p.pledge_end limit 1)");
         }
+
+        if(!tableExists("pledge_progress")) {
+            LOG.info("-- Creating pledge_progress table");
+            runSql("CREATE TABLE pledge_progress (pledge_id INTEGER PRIMARY KEY REFERENCES pledges(id) ON DELETE CASCADE, " +
+                                                 "total_donations FLOAT NOT NULL DEFAULT 0, " +
+                                                 "donation_count INTEGER NOT NULL DEFAULT 0)");
+
+            // Rows only exist while a pledge has linked donations so pledges without gifts still read as NULL
+            runSql("CREATE OR REPLACE FUNCTION update_pledge_progress() RETURNS TRIGGER AS $$ " +
+                   "BEGIN " +
+                       "IF TG_OP IN ('UPDATE', 'DELETE') AND OLD.pledge_id IS NOT NULL THEN " +
+                           "UPDATE pledge_progress SET total_donations = total_donations - COALESCE(OLD.amount, 0), " +
+                                                      "donation_count = donation_count - 1 " +
+                               "WHERE pledge_id = OLD.pledge_id; " +
+                           "DELETE FROM pledge_progress WHERE pledge_id = OLD.pledge_id AND donation_count <= 0; " +
+                       "END IF; " +
+                       "IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.pledge_id IS NOT NULL THEN " +
+                           "INSERT INTO pledge_progress (pledge_id, total_donations, donation_count) " +
+                               "VALUES (NEW.pledge_id, COALESCE(NEW.amount, 0), 1) " +
+                               "ON CONFLICT (pledge_id) DO UPDATE " +
+                               "SET total_donations = pledge_progress.total_donations + EXCLUDED.total_donations, " +
+                                   "donation_count = pledge_progress.donation_count + 1; " +
+                       "END IF; " +
+                       "RETURN NULL; " +
+                   "END; $$ LANGUAGE plpgsql");
+
+            runSql("CREATE TRIGGER donations_pledge_progress AFTER INSERT OR DELETE OR UPDATE OF pledge_id, amount ON donations " +
+                   "FOR EACH ROW EXECUTE PROCEDURE update_pledge_progress()");
+
+            runSql(PledgeDB.REBUILD_PROGRESS_SQL);
+        }
+
+        if(!tableExists("donation_report_jobs")) {
+            LOG.info("-- Creating donation_report_jobs table");
+            runSql("CREATE TABLE donation_report_jobs (id SERIAL PRIMARY KEY, " +
+                                                      "year INTEGER NOT NULL, " +
+                                                      "format TEXT NOT NULL, " +
+                                                      "status TEXT NOT NULL, " +
+                                                      "families_done INTEGER NOT NULL DEFAULT 0, " +
+                                                      "families_total INTEGER NOT NULL DEFAULT 0, " +
+                                                      "message TEXT, " +
+                                                      "artifact_path TEXT, " +
+                                                      "requester_id INTEGER REFERENCES people(id) ON DELETE SET NULL, " +
+                                                      "org_host TEXT NOT NULL, " +
+                                                      "created_time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(), " +
+                                                      "completed_time TIMESTAMP WITH TIME ZONE, " +
+                                                      "updated_time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(), " +
+                                                      "org_id INTEGER references organizations(id) ON DELETE CASCADE)");
+            // One queued or running job per org
+            runSql("CREATE UNIQUE INDEX donation_report_jobs_active_idx ON donation_report_jobs (org_id) " +
+                   "WHERE status IN ('QUEUED', 'RUNNING')");
+        }
+
+        // Progress heartbeat used to fail stalled jobs
+        if(!columnExists("donation_report_jobs", "updated_time"))
+            ensureColumn("donation_report_jobs", "updated_time", "TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW()");
+
+        // Instance that runs the job, so only one instance resumes it after a restart
+        if(!columnExists("donation_report_jobs", "owner"))
+            ensureColumn("donation_report_jobs", "owner", "TEXT");
+
+        if(!tableExists("donation_statement_emails")) {
+            LOG.info("-- Creating donation_statement_emails table");
+            runSql("CREATE TABLE donation_statement_emails (year INTEGER NOT NULL, " +
+                                                           "family_id INTEGER REFERENCES families(id) ON DELETE CASCADE, " +
+                                                           "status TEXT NOT NULL, " +
+                                                           "email TEXT, " +
+                                                           "attempts INTEGER NOT NULL DEFAULT 0, " +
+                                                           "message TEXT, " +
+                                                           "updated_time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(), " +
+                                                           "org_id INTEGER references organizations(id) ON DELETE CASCADE, " +
+                                                           "PRIMARY KEY (org_id, year, family_id))");
+        }
+
+        // Replaced on every start so existing databases pick up changes to the ordering. plpgsql resolves tables when
+        // the functions run, so they can be created ahead of the table.
+        runSql(REFRESH_LAST_DONATION_SQL);
+        runSql(UPDATE_LAST_DONATION_SQL);
+        if(!tableExists("last_donation")) {
+            LOG.info("-- Creating last_donation table");
+            runSql("CREATE TABLE last_donation (org_id INTEGER references organizations(id) ON DELETE CASCADE, " +
+                                               "family_id INTEGER REFERENCES families(id) ON DELETE CASCADE, " +
+                                               "fund_id INTEGER REFERENCES funds(id) ON DELETE CASCADE, " +
+                                               "donation_id BIGINT NOT NULL, " +
+                                               "amount FLOAT, " +
+                                               "type TEXT, " +
+                                               "date DATE, " +
+                                               "recorded_time TIMESTAMP WITH TIME ZONE, " +
+                                               "PRIMARY KEY (org_id, family_id, fund_id))");
+
+            runSql("CREATE TRIGGER donations_last_donation AFTER INSERT OR DELETE OR " +
+                   "UPDATE OF org_id, family_id, fund_id, amount, type, date, recorded_time ON donations " +
+                   "FOR EACH ROW EXECUTE PROCEDURE update_last_donation()");
+
+            runSql("INSERT INTO last_donation (org_id, family_id, fund_id, donation_id, amount, type, date, recorded_time) " +
+                   "SELECT DISTINCT ON (org_id, family_id, fund_id) org_id, family_id, fund_id, id, amount, type, date, recorded_time " +
+                   "FROM donations WHERE family_id IS NOT NULL AND org_id IS NOT NULL " +
+                   "ORDER BY org_id, family_id, fund_id, " + LAST_DONATION_ORDER);
+        }
+
+        if(!tableExists("giving_rollup_monthly")) {
+            LOG.info("-- Creating giving_rollup_monthly table");
+            runSql("CREATE TABLE giving_rollup_monthly (org_id INTEGER references organizations(id) ON DELETE CASCADE, " +
+                                                       "family_id INTEGER REFERENCES families(id) ON DELETE CASCADE, " +
+                                                       "fund_id INTEGER REFERENCES funds(id) ON DELETE CASCADE, " +
+                                                       "month DATE NOT NULL, " +
+                                                       "total_amount FLOAT NOT NULL DEFAULT 0, " +
+                                                       "donation_count INTEGER NOT NULL DEFAULT 0, " +
+                                                       "PRIMARY KEY (org_id, family_id, fund_id, month))");
+
+            // Counts only gifts with an amount, matching COUNT(d.amount) in the contribution summaries
+            runSql("CREATE OR REPLACE FUNCTION update_giving_rollup() RETURNS TRIGGER AS $$ " +
+                   "BEGIN " +
+                       "IF TG_OP IN ('UPDATE', 'DELETE') AND OLD.org_id IS NOT NULL AND OLD.family_id IS NOT NULL " +
+                          "AND OLD.date IS NOT NULL AND OLD.amount IS NOT NULL THEN " +
+                           "UPDATE giving_rollup_monthly SET total_amount = total_amount - OLD.amount, " +
+                                                            "donation_count = donation_count - 1 " +
+                               "WHERE org_id = OLD.org_id AND family_id = OLD.family_id AND fund_id = OLD.fund_id " +
+                               "AND month = date_trunc('month', OLD.date)::date; " +
+                           "DELETE FROM giving_rollup_monthly WHERE org_id = OLD.org_id AND family_id = OLD.family_id " +
+                               "AND fund_id = OLD.fund_id AND month = date_trunc('month', OLD.date)::date AND donation_count <= 0; " +
+                       "END IF; " +
+                       "IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.org_id IS NOT NULL AND NEW.family_id IS NOT NULL " +
+                          "AND NEW.date IS NOT NULL AND NEW.amount IS NOT NULL THEN " +
+                           "INSERT INTO giving_rollup_monthly (org_id, family_id, fund_id, month, total_amount, donation_count) " +
+                               "VALUES (NEW.org_id, NEW.family_id, NEW.fund_id, date_trunc('month', NEW.date)::date, NEW.amount, 1) " +
+                               "ON CONFLICT (org_id, family_id, fund_id, month) DO UPDATE " +
+                               "SET total_amount = giving_rollup_monthly.total_amount + EXCLUDED.total_amount, " +
+                                   "donation_count = giving_rollup_monthly.donation_count + 1; " +
+                       "END IF; " +
+                       "RETURN NULL; " +
+                   "END; $$ LANGUAGE plpgsql");
+
+            runSql("CREATE TRIGGER donations_giving_rollup AFTER INSERT OR DELETE OR " +
+                   "UPDATE OF org_id, family_id, fund_id, amount, date ON donations " +
+                   "FOR EACH ROW EXECUTE PROCEDURE update_giving_rollup()");
+
+            runSql(FamilyContributionDB.REBUILD_ROLLUP_SQL);
+        }
+
+        // Used by donation import to reject impossible dates like 2021-02-30 per row instead of failing the file
+        runSql("CREATE OR REPLACE FUNCTION import_date(value TEXT) RETURNS DATE AS $$ " +
+               "DECLARE parsed DATE; " +
+               "BEGIN " +
+                   "parsed := to_date(value, 'YYYY-MM-DD'); " +
+                   "RETURN CASE WHEN to_char(parsed, 'YYYY-MM-DD') = value THEN parsed END; " +
+               "EXCEPTION WHEN others THEN " +
+                   "RETURN NULL; " +
+               "END; $$ LANGUAGE plpgsql STABLE");
+
+        ensureIndexes();
+    }
+
+    // Latest gift per family and fund, by the ordering getLastDonation has always used: date, then recorded time, newest
+    // first. DESC puts NULLs first, so an undated gift counts as the latest. Every path below spells that out.
+    static final String LAST_DONATION_ORDER = "date DESC NULLS FIRST, recorded_time DESC NULLS FIRST, id DESC";
+
+    static final String REFRESH_LAST_DONATION_SQL =
+            "CREATE OR REPLACE FUNCTION refresh_last_donation(org INTEGER, fam INTEGER, fnd INTEGER) RETURNS VOID AS $$ " +
+            "BEGIN " +
+                "DELETE FROM last_donation WHERE org_id = org AND family_id = fam AND fund_id = fnd; " +
+                "INSERT INTO last_donation (org_id, family_id, fund_id, donation_id, amount, type, date, recorded_time) " +
+                    "SELECT org_id, family_id, fund_id, id, amount, type, date, recorded_time FROM donations " +
+                    "WHERE org_id = org AND family_id = fam AND fund_id = fnd " +
+                    "ORDER BY " + LAST_DONATION_ORDER + " LIMIT 1; " +
+            "END; $$ LANGUAGE plpgsql";
+
+    // Inserts only replace an older gift. NULL compares as infinity here, the same place NULLS FIRST puts it when
+    // sorting newest first. Updates and deletes recheck the affected keys from the (indexed) history.
+    static final String UPDATE_LAST_DONATION_SQL =
+            "CREATE OR REPLACE FUNCTION update_last_donation() RETURNS TRIGGER AS $$ " +
+            "BEGIN " +
+                "IF TG_OP = 'INSERT' THEN " +
+                    "IF NEW.family_id IS NOT NULL THEN " +
+                        "INSERT INTO last_donation (org_id, family_id, fund_id, donation_id, amount, type, date, recorded_time) " +
+                            "VALUES (NEW.org_id, NEW.family_id, NEW.fund_id, NEW.id, NEW.amount, NEW.type, NEW.date, NEW.recorded_time) " +
+                            "ON CONFLICT (org_id, family_id, fund_id) DO UPDATE " +
+                            "SET donation_id = EXCLUDED.donation_id, amount = EXCLUDED.amount, type = EXCLUDED.type, " +
+                                "date = EXCLUDED.date, recorded_time = EXCLUDED.recorded_time " +
+                            "WHERE (COALESCE(EXCLUDED.date, 'infinity'::date), " +
+                                   "COALESCE(EXCLUDED.recorded_time, 'infinity'::timestamptz), EXCLUDED.donation_id) >= " +
+                                  "(COALESCE(last_donation.date, 'infinity'::date), " +
+                                   "COALESCE(last_donation.recorded_time, 'infinity'::timestamptz), last_donation.donation_id); " +
+                    "END IF; " +
+                    "RETURN NULL; " +
+                "END IF; " +
+                "IF OLD.family_id IS NOT NULL THEN " +
+                    "PERFORM refresh_last_donation(OLD.org_id, OLD.family_id, OLD.fund_id); " +
+                "END IF; " +
+                "IF TG_OP = 'UPDATE' AND NEW.family_id IS NOT NULL AND " +
+                   "(NEW.org_id, NEW.family_id, NEW.fund_id) IS DISTINCT FROM (OLD.org_id, OLD.family_id, OLD.fund_id) THEN " +
+                    "PERFORM refresh_last_donation(NEW.org_id, NEW.family_id, NEW.fund_id); " +
+                "END IF; " +
+                "RETURN NULL; " +
+            "END; $$ LANGUAGE plpgsql";
+
+    // Indexes matching the service's hot query shapes. Every query is org scoped, so org_id leads where it helps.
+    private static final String[][] MANAGED_INDEXES = {
+            {"donations_org_family_date_idx", "donations (org_id, family_id, date)"},
+            {"donations_org_family_fund_date_idx", "donations (org_id, family_id, fund_id, date)"},
+            {"donations_org_date_idx", "donations (org_id, date)"},
+            {"donations_org_seek_date_id_idx", "donations (org_id, (COALESCE(date, '-infinity'::date)), id)"},
+            {"donations_pledge_idx", "donations (pledge_id) WHERE pledge_id IS NOT NULL"},
+            {"donations_org_batch_idx", "donations (org_id, batch_number) WHERE batch_number > 0"},
+            {"donations_org_transaction_idx", "donations (org_id, transaction_id) WHERE transaction_id IS NOT NULL"},
+            {"pledges_org_family_fund_span_idx", "pledges (org_id, family_id, fund_id, pledge_start, pledge_end)"},
+            {"funds_org_idx", "funds (org_id)"},
+            {"giving_rollup_org_month_idx", "giving_rollup_monthly (org_id, month, family_id)"}
+    };
+
+    private void ensureIndexes() throws SQLException {
+        for(String[] index: MANAGED_INDEXES)
+            ensureIndex(index[0], index[1]);
+    }
+
+    // CONCURRENTLY keeps the tables writable while a large index builds. A failed concurrent build leaves an INVALID
+    // index behind which IF NOT EXISTS would happily skip, so those are dropped and rebuilt. An index another instance
+    // is still building concurrently is INVALID too until it finishes; that one is left alone. Postgres 12 reports
+    // builds in pg_stat_progress_create_index; before that (production is on 11) the builder is found by the
+    // SHARE UPDATE EXCLUSIVE lock it holds on the table.
+    private void ensureIndex(String name, String definition) throws SQLException {
+        runSql("DO $$ DECLARE idx REGCLASS; building BOOLEAN; BEGIN " +
+                   "SELECT i.indexrelid INTO idx FROM pg_index i JOIN pg_class c ON c.oid=i.indexrelid " +
+                       "WHERE c.relname='" + name + "' AND NOT i.indisvalid; " +
+                   "IF idx IS NULL THEN RETURN; END IF; " +
+                   "IF current_setting('server_version_num')::INTEGER >= 120000 THEN " +
+                       "EXECUTE 'SELECT EXISTS (SELECT 1 FROM pg_stat_progress_create_index WHERE index_relid=$1)' " +
+                           "INTO building USING idx; " +
+                   "ELSE " +
+                       "SELECT EXISTS (SELECT 1 FROM pg_locks l JOIN pg_index i ON l.relation=i.indrelid " +
+                           "WHERE i.indexrelid=idx AND l.mode='ShareUpdateExclusiveLock' AND l.granted " +
+                           "AND l.pid <> pg_backend_pid()) INTO building; " +
+                   "END IF; " +
+                   "IF NOT building THEN " +
+                       "EXECUTE 'DROP INDEX ' || idx; " +
+                   "END IF; " +
+               "END $$");
+
+        long start = System.currentTimeMillis();
+        runSql("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + definition);
+        long elapsed = System.currentTimeMillis() - start;
+        if(elapsed > 1000)
+            LOG.info(String.format("-- Built index %s in %d ms", name, elapsed));
+        else
+            LOG.debug(String.format("-- Verified index %s in %d ms", name, elapsed));
     }
 }
 
@@ -0,0 +1,157 @@
+package org.servantscode.donation.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.servantscode.commons.db.DBAccess;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.Donation;
+import org.servantscode.donation.ServiceConfig;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ad hoc donation aggregates served from an in memory DonationSnapshot per org instead of the database.
+ *
+ * A snapshot is loaded on an org's first query with one streaming scan, then kept current by the write paths in this
+ * service. Snapshots are reloaded after ANALYTICS_MAX_AGE_MINUTES so writes made by other instances or directly
+ * against the database are eventually picked up. Off unless ANALYTICS_ENABLED is set.
+ */
+public class DonationAnalyticsDB extends DBAccess {
+    private static final Logger LOG = LogManager.getLogger(DonationAnalyticsDB.class);
+
+    private static final boolean ENABLED = ServiceConfig.getBoolean("ANALYTICS_ENABLED", false);
+    private static final long MAX_AGE_MILLIS = ServiceConfig.getLong("ANALYTICS_MAX_AGE_MINUTES", 15) * 60 * 1000;
+    private static final long LOAD_WAIT_SECONDS = ServiceConfig.getLong("ANALYTICS_LOAD_WAIT_SECONDS", 120);
+
+    private static final Map<Integer, DonationSnapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+    private static final Map<Integer, Object> LOAD_LOCKS = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public List<DonationSnapshot.Group> query(DonationSnapshot.Filter filter, Set<DonationSnapshot.Dimension> groupBy) {
+        return snapshot().query(filter, groupBy);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        DonationSnapshot orgSnapshot = SNAPSHOTS.get(OrganizationContext.orgId());
+        long donations = 0;
+        long bytes = 0;
+        for(DonationSnapshot snapshot: SNAPSHOTS.values()) {
+            donations += snapshot.getDonationCount();
+            bytes += snapshot.getMemoryBytes();
+        }
+
+        metrics.put("enabled", ENABLED);
+        metrics.put("loadedOrgs", SNAPSHOTS.size());
+        metrics.put("donations", donations);
+        metrics.put("memoryBytes", bytes);
+        metrics.put("bytesPerDonation", DonationSnapshot.BYTES_PER_DONATION);
+        metrics.put("bytesPerMillionDonations", DonationSnapshot.BYTES_PER_DONATION * 1_000_000L);
+        if(orgSnapshot != null) {
+            metrics.put("orgDonations", orgSnapshot.getDonationCount());
+            metrics.put("orgMemoryBytes", orgSnapshot.getMemoryBytes());
+            metrics.put("orgSnapshotAgeSeconds", (System.currentTimeMillis() - orgSnapshot.getLoadedTime())/1000);
+        }
+        return metrics;
+    }
+
+    // ----- Write hooks -----
+    // Called after commit. Only orgs with a loaded snapshot are touched.
+    public static void onInsert(Collection<Donation> donations) {
+        DonationSnapshot snapshot = SNAPSHOTS.get(OrganizationContext.orgId());
+        if(snapshot != null)
+            donations.forEach(snapshot::upsert);
+    }
+
+    public static void onUpdate(Donation donation) {
+        DonationSnapshot snapshot = SNAPSHOTS.get(OrganizationContext.orgId());
+        if(snapshot != null)
+            snapshot.upsert(donation);
+    }
+
+    public static void onDelete(long id) {
+        DonationSnapshot snapshot = SNAPSHOTS.get(OrganizationContext.orgId());
+        if(snapshot != null)
+            snapshot.delete(id);
+    }
+
+    // For bulk writes that don't have the rows in hand. The next query reloads.
+    public static void invalidate() {
+        SNAPSHOTS.remove(OrganizationContext.orgId());
+    }
+
+    // ----- Private -----
+    private DonationSnapshot snapshot() {
+        int orgId = OrganizationContext.orgId();
+        DonationSnapshot snapshot = SNAPSHOTS.get(orgId);
+        if(snapshot == null || System.currentTimeMillis() - snapshot.getLoadedTime() > MAX_AGE_MILLIS) {
+            synchronized (LOAD_LOCKS.computeIfAbsent(orgId, id -> new Object())) {
+                snapshot = SNAPSHOTS.get(orgId);
+                if(snapshot == null || System.currentTimeMillis() - snapshot.getLoadedTime() > MAX_AGE_MILLIS)
+                    snapshot = load(orgId);
+            }
+        }
+
+        try {
+            if(!snapshot.awaitReady(LOAD_WAIT_SECONDS))
+                throw new RuntimeException("Donation analytics snapshot is not available.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for donation analytics snapshot.", e);
+        }
+        return snapshot;
+    }
+
+    // The snapshot is published before the scan so writes committed meanwhile are queued on it and replayed after.
+    private DonationSnapshot load(int orgId) {
+        long start = System.currentTimeMillis();
+        DonationSnapshot snapshot = new DonationSnapshot(countDonations(orgId));
+        SNAPSHOTS.put(orgId, snapshot);
+
+        String sql = "SELECT id, family_id, fund_id, date, amount, type FROM donations WHERE org_id=? ORDER BY id";
+        try (Connection conn = getConnection()) {
+            ReportCursor.read(conn, c -> {
+                PreparedStatement stmt = c.prepareStatement(sql);
+                stmt.setInt(1, orgId);
+                return stmt;
+            }, rs -> {
+                while(rs.next()) {
+                    Date date = rs.getDate("date");
+                    snapshot.load(rs.getLong("id"), rs.getInt("family_id"), rs.getInt("fund_id"),
+                                  date != null? date.toLocalDate(): null, rs.getFloat("amount"), rs.getString("type"));
+                }
+            });
+        } catch (SQLException | IOException | RuntimeException e) {
+            SNAPSHOTS.remove(orgId, snapshot);
+            snapshot.failLoading();
+            throw new RuntimeException("Could not load donation analytics snapshot for org: " + orgId, e);
+        }
+
+        snapshot.finishLoading();
+        LOG.info(String.format("Loaded %d donations for analytics in %dms (%d bytes).",
+                snapshot.getDonationCount(), System.currentTimeMillis() - start, snapshot.getMemoryBytes()));
+        return snapshot;
+    }
+
+    private int countDonations(int orgId) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT count(1) FROM donations WHERE org_id=?")) {
+            stmt.setInt(1, orgId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next()? rs.getInt(1): 0;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not count donations for org: " + orgId, e);
+        }
+    }
+}
@@ -10,6 +10,10 @@ import org.servantscode.commons.search.QueryBuilder;
 import org.servantscode.commons.search.UpdateBuilder;
 import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.donation.Donation;
+import org.servantscode.donation.PageCursor;
+import org.servantscode.donation.PaginatedCursorResponse;
+import org.servantscode.donation.PaginatedDonationResponse;
+import org.servantscode.donation.ServiceConfig;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
@@ -19,10 +23,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.function.Supplier;
 
 import static org.servantscode.commons.StringUtils.isSet;
 
@@ -39,6 +47,19 @@ public class DonationDB extends EasyDB<Donation> {
         FIELD_MAP.put("familyName", "fam.surname");
     }
 
+    private static final int BATCH_CHUNK_SIZE = ServiceConfig.getInt("DONATION_BATCH_CHUNK_SIZE", 500);
+    private static final int ANNUAL_FETCH_FAMILIES = ServiceConfig.getInt("ANNUAL_REPORT_FETCH_FAMILIES", 50);
+
+    // Undated donations sort as the oldest so keyset paging reaches them. Matches donations_org_seek_date_id_idx.
+    private static final String NO_DATE_KEY = "-infinity";
+    private static final String SEEK_DATE = "(COALESCE(d.date, '-infinity'::date), d.id)";
+    private static final String SEEK_DATE_SORT = "COALESCE(d.date, '-infinity'::date) DESC, d.id DESC";
+
+    private static final String INSERT_DONATION_SQL =
+            "INSERT INTO donations (family_id, fund_id, pledge_id, amount, deductible_amount, date, type, " +
+                                   "check_number, transaction_id, batch_number, notes, recorded_time, recorder_id, org_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     public DonationDB() {
         super(Donation.class, "familyName", FIELD_MAP);
     }
@@ -68,6 +89,50 @@ public class DonationDB extends EasyDB<Donation> {
         return get(query);
     }
 
+    // Page rows, full match count and total value in one statement. Window aggregates are computed before LIMIT so
+    // every row carries the totals for the whole match set.
+    public PaginatedDonationResponse getDonationPage(int start, int count, String sortField, String search, boolean allowEstimate) {
+        CountCache.Counts counts = CountCache.get("donations", search);
+        if(counts == null && allowEstimate && !isSet(search))
+            counts = estimateCounts();
+        if(counts != null)
+            return countedPage(start, counts, getDonations(start, count, sortField, search));
+
+        QueryBuilder query = select(withTotals(all())).search(searchParser.parse(search))
+                .page(sortField, start, count);
+        return getPage(query, start, "donations", search,
+                () -> getDonationCount(search), () -> getDonationTotal(search));
+    }
+
+    public PaginatedDonationResponse getFamilyDonationPage(int familyId, int start, int count, String sortField, String search) {
+        String cacheKey = "family-donations:" + familyId;
+        CountCache.Counts counts = CountCache.get(cacheKey, search);
+        if(counts != null)
+            return countedPage(start, counts, getFamilyDonations(familyId, start, count, sortField, search));
+
+        QueryBuilder query = select(withTotals(all())).with("d.family_id", familyId)
+                .search(searchParser.parse(search))
+                .page(sortField, start, count);
+        return getPage(query, start, cacheKey, search,
+                () -> getFamilyDonationCount(familyId, search), () -> getFamilyDonationTotal(familyId, search));
+    }
+
+    // Keyset paging, newest first. The first page (empty cursor) carries the match totals. Later pages seek past the
+    // cursor and skip the totals so their cost does not grow with depth.
+    public PaginatedDonationResponse getDonationCursorPage(String cursor, int count, String search) {
+        QueryBuilder query = isSet(cursor)? select(all()): select(withTotals(all()));
+        return getCursorPage(query.search(searchParser.parse(search)), cursor, count);
+    }
+
+    public PaginatedDonationResponse getFamilyDonationCursorPage(int familyId, String cursor, int count, String search) {
+        QueryBuilder query = isSet(cursor)? select(all()): select(withTotals(all()));
+        return getCursorPage(query.with("d.family_id", familyId).search(searchParser.parse(search)), cursor, count);
+    }
+
+    private static QueryBuilder withTotals(QueryBuilder fields) {
+        return fields.select("COUNT(1) OVER () AS total_count").select("SUM(amount) OVER () AS total_value");
+    }
+
     private static QueryBuilder all() {
         return DBAccess.select("d.*","f.name AS fund_name", "fam.surname AS family_name", "p.name AS recorder_name");
     }
@@ -77,11 +142,15 @@ public class DonationDB extends EasyDB<Donation> {
     }
 
     private static QueryBuilder select(QueryBuilder select) {
+        return from(select).inOrg("d.org_id");
+    }
+
+    // Unscoped. Callers must add their own org filter.
+    private static QueryBuilder from(QueryBuilder select) {
         return select.from("donations d")
                 .leftJoin("funds f on d.fund_id=f.id")
                 .leftJoin("families fam on d.family_id=fam.id")
-                .leftJoin("people p on d.recorder_id=p.id")
-                .inOrg("d.org_id");
+                .leftJoin("people p on d.recorder_id=p.id");
     }
 
     public int getFamilyDonationCount(int familyId, String search) {
@@ -91,7 +160,40 @@ public class DonationDB extends EasyDB<Donation> {
     }
 
     public List<Donation> getAnnualDonations(int familyId, int year) {
-        return get(select(all()).with("d.family_id", familyId).where("date_part('year', date) = ?", year));
+        return get(select(all()).with("d.family_id", familyId)
+                .where("date >= ?", LocalDate.of(year, 1, 1)).where("date < ?", LocalDate.of(year + 1, 1, 1)));
+    }
+
+    public interface FamilyDonationHandler {
+        void handle(int familyId, List<Donation> donations) throws IOException;
+    }
+
+    // A year's donations for the given families, handed off a family at a time in family id order. Families are read
+    // ANNUAL_REPORT_FETCH_FAMILIES at a time, each batch in its own short query, and the connection is released before
+    // the handler runs, so slow rendering or a slow client never holds a transaction open. Takes the org explicitly
+    // because callers run after the request that scoped them has returned.
+    public void streamAnnualDonations(int orgId, int year, Collection<Integer> familyIds, FamilyDonationHandler handler) throws IOException {
+        List<Integer> sortedIds = new ArrayList<>(new TreeSet<>(familyIds));
+        for(int i=0; i<sortedIds.size(); i+=ANNUAL_FETCH_FAMILIES) {
+            List<Integer> batch = sortedIds.subList(i, Math.min(i + ANNUAL_FETCH_FAMILIES, sortedIds.size()));
+            QueryBuilder query = from(all()).where("d.org_id=?", orgId)
+                    .where("d.date >= ?", LocalDate.of(year, 1, 1)).where("d.date < ?", LocalDate.of(year + 1, 1, 1))
+                    .where("d.family_id >= ?", batch.get(0)).where("d.family_id <= ?", batch.get(batch.size() - 1))
+                    .sort("d.family_id, d.date, d.id");
+
+            int currentFamily = -1;
+            List<Donation> donations = new ArrayList<>();
+            for(Donation donation: get(query)) {
+                if(donation.getFamilyId() != currentFamily && !donations.isEmpty()) {
+                    handleFamily(currentFamily, donations, familyIds, handler);
+                    donations = new ArrayList<>();
+                }
+                currentFamily = donation.getFamilyId();
+                donations.add(donation);
+            }
+            if(!donations.isEmpty())
+                handleFamily(currentFamily, donations, familyIds, handler);
+        }
     }
 
     public float getFamilyDonationTotal(int familyId, String search) {
@@ -155,20 +257,24 @@ public class DonationDB extends EasyDB<Donation> {
 
     public Donation getLastDonation(int familyId, int fundId) {
         QueryBuilder query = select(all()).with("d.family_id", familyId).with("fund_id", fundId)
-                .sort("date DESC, recorded_time DESC").limit(1);
+                .sort("date DESC NULLS FIRST, recorded_time DESC NULLS FIRST").limit(1);
         return getOne(query);
     }
 
     public StreamingOutput getReportReader(String search, final List<String> fields) {
+        return getReportReader(search, fields, false);
+    }
+
+    public StreamingOutput getReportReader(String search, final List<String> fields, boolean bulk) {
         QueryBuilder query = select(all()).search(searchParser.parse(search));
         return new ReportStreamingOutput(fields) {
             @Override
             public void write(OutputStream output) throws IOException, WebApplicationException {
-                try ( Connection conn = getConnection();
-                      PreparedStatement stmt = query.prepareStatement(conn);
-                      ResultSet rs = stmt.executeQuery()) {
-
-                    writeCsv(output, rs);
+                try (Connection conn = getConnection()) {
+                    if(bulk)
+                        ReportCursor.copyCsv(conn, query, fields, output, (rs, out) -> writeCsv(out, rs));
+                    else
+                        ReportCursor.stream(conn, query, output, (rs, out) -> writeCsv(out, rs));
                 } catch (SQLException | IOException e) {
                     throw new RuntimeException("Could not retrieve donation report for search '" + search + "'", e);
                 }
@@ -193,9 +299,91 @@ public class DonationDB extends EasyDB<Donation> {
                 .value("recorder_id", donation.getRecorderId())
                 .value("org_id", OrganizationContext.orgId());
         donation.setId(createAndReturnKey(cmd));
+        CountCache.invalidate();
+        DonationAnalyticsDB.onInsert(Collections.singletonList(donation));
         return donation;
     }
 
+    public List<Donation> createDonations(List<Donation> donations) {
+        return createDonations(donations, BATCH_CHUNK_SIZE);
+    }
+
+    // All or nothing. Rows are sent in JDBC batches of chunkSize on a single connection and committed together.
+    // Generated keys come back in batch order so ids are assigned to the input list positionally.
+    public List<Donation> createDonations(List<Donation> donations, int chunkSize) {
+        if(donations.isEmpty())
+            return donations;
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                insertDonations(conn, donations, chunkSize);
+                conn.commit();
+                CountCache.invalidate();
+                DonationAnalyticsDB.onInsert(donations);
+                return donations;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not create batch of " + donations.size() + " donations.", e);
+        }
+    }
+
+    // Set based version of createDonationIfUnique for a whole batch. The batch is staged in a temp table and matched
+    // against existing donations with a single join, then only the unmatched rows are inserted. Results are returned
+    // in input order with existing rows in place of their duplicates.
+    public List<Donation> createDonationsIfUnique(List<Donation> donations) {
+        if(donations.isEmpty())
+            return donations;
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                stageDonations(conn, donations);
+                Donation[] results = findStagedDuplicates(conn, donations.size());
+
+                List<Donation> newDonations = new ArrayList<>(donations.size());
+                Map<String, List<Donation>> batchDuplicates = new HashMap<>();
+                for(int i=0; i<results.length; i++) {
+                    if(results[i] != null)
+                        continue;
+
+                    // Repeated rows inside the batch resolve to the first occurrence, as they did when inserted one by one.
+                    Donation donation = donations.get(i);
+                    List<Donation> candidates = batchDuplicates.computeIfAbsent(duplicateKey(donation), k -> new ArrayList<>());
+                    Donation first = candidates.stream().filter(c -> matchesOptional(donation, c)).findFirst().orElse(null);
+                    results[i] = first != null? first: donation;
+                    if(first == null) {
+                        candidates.add(donation);
+                        newDonations.add(donation);
+                    }
+                }
+
+                if(newDonations.size() < donations.size())
+                    LOG.debug(String.format("Found %d existing matching donations.", donations.size() - newDonations.size()));
+
+                insertDonations(conn, newDonations, BATCH_CHUNK_SIZE);
+                conn.commit();
+                if(!newDonations.isEmpty()) {
+                    CountCache.invalidate();
+                    DonationAnalyticsDB.onInsert(newDonations);
+                }
+                return Arrays.asList(results);
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not create unique batch of " + donations.size() + " donations.", e);
+        }
+    }
+
     public Donation createDonationIfUnique(Donation donation) {
         QueryBuilder query = select(all())
                 .with("d.family_id", donation.getFamilyId())
@@ -235,14 +423,236 @@ public class DonationDB extends EasyDB<Donation> {
                 .value("batch_number", donation.getBatchNumber())
                 .value("notes", donation.getNotes())
                 .withId(donation.getId()).inOrg();
-        return update(cmd);
+        boolean updated = update(cmd);
+        CountCache.invalidate();
+        if(updated)
+            DonationAnalyticsDB.onUpdate(donation);
+        return updated;
     }
 
     public boolean deleteDonation(long id) {
-        return delete(deleteFrom("donations").withId(id).inOrg());
+        boolean deleted = delete(deleteFrom("donations").withId(id).inOrg());
+        CountCache.invalidate();
+        if(deleted)
+            DonationAnalyticsDB.onDelete(id);
+        return deleted;
     }
 
     // ----- Private -----
+    // Batches are family id ranges, which can take in families the caller didn't ask for.
+    private static void handleFamily(int familyId, List<Donation> donations, Collection<Integer> familyIds,
+                                     FamilyDonationHandler handler) throws IOException {
+        if(familyIds.contains(familyId))
+            handler.handle(familyId, donations);
+    }
+
+    private PaginatedDonationResponse getPage(QueryBuilder query, int start, String cacheKey, String search,
+                                              Supplier<Integer> countFallback, Supplier<Float> totalFallback) {
+        long generation = CountCache.generation();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<Donation> donations = new ArrayList<>();
+            int totalCount = 0;
+            float totalValue = 0f;
+            while(rs.next()) {
+                donations.add(processRow(rs));
+                totalCount = rs.getInt("total_count");
+                totalValue = rs.getFloat("total_value");
+            }
+
+            // Paged past the end. No rows means no window totals, so ask for them directly.
+            if(donations.isEmpty() && start > 0) {
+                totalCount = countFallback.get();
+                totalValue = totalFallback.get();
+            }
+
+            CountCache.put(cacheKey, search, generation, new CountCache.Counts(totalCount, totalValue, false));
+            return new PaginatedDonationResponse(start, donations.size(), totalCount, donations, totalValue);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve donation page.", e);
+        }
+    }
+
+    private static PaginatedDonationResponse countedPage(int start, CountCache.Counts counts, List<Donation> donations) {
+        // An estimate comes from the planner's row count alone; there is no total to report.
+        Float total = counts.isEstimated()? null: counts.getTotal();
+        PaginatedDonationResponse page = new PaginatedDonationResponse(start, donations.size(), counts.getCount(), donations, total);
+        page.setCountEstimated(counts.isEstimated());
+        return page;
+    }
+
+    private CountCache.Counts estimateCounts() {
+        try (Connection conn = getConnection()) {
+            return CountCache.estimate(conn, "donations");
+        } catch (SQLException e) {
+            LOG.warn("Could not estimate donation count. Falling back to exact count.", e);
+            return null;
+        }
+    }
+
+    private PaginatedDonationResponse getCursorPage(QueryBuilder query, String cursor, int count) {
+        boolean firstPage = !isSet(cursor);
+        if(!firstPage) {
+            PageCursor after = PageCursor.decode(cursor);
+            if(!NO_DATE_KEY.equals(after.getKey())) {
+                try {
+                    LocalDate.parse(after.getKey());
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Invalid page cursor: " + cursor, e);
+                }
+            }
+            query.where(SEEK_DATE + " < (?::date, ?)", after.getKey(), after.getId());
+        }
+        query.sort(SEEK_DATE_SORT).limit(count);
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<Donation> donations = new ArrayList<>(count);
+            int totalCount = firstPage? 0: PaginatedCursorResponse.COUNT_NOT_COMPUTED;
+            float totalValue = 0f;
+            while(rs.next()) {
+                donations.add(processRow(rs));
+                if(firstPage) {
+                    totalCount = rs.getInt("total_count");
+                    totalValue = rs.getFloat("total_value");
+                }
+            }
+
+            PaginatedDonationResponse page = new PaginatedDonationResponse(0, donations.size(), totalCount, donations,
+                                                                           firstPage? totalValue: null);
+            if(donations.size() == count && count > 0) {
+                Donation last = donations.get(donations.size() - 1);
+                String key = last.getDonationDate() != null? last.getDonationDate().toString(): NO_DATE_KEY;
+                page.setNextCursor(new PageCursor(key, last.getId()).encode());
+            }
+            return page;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve donation page.", e);
+        }
+    }
+
+    private void insertDonations(Connection conn, List<Donation> donations, int chunkSize) throws SQLException {
+        int chunk = chunkSize > 0? chunkSize: BATCH_CHUNK_SIZE;
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_DONATION_SQL, new String[] {"id"})) {
+            for(int i=0; i<donations.size(); i+=chunk) {
+                List<Donation> batch = donations.subList(i, Math.min(i + chunk, donations.size()));
+                for(Donation donation: batch) {
+                    populateInsert(stmt, donation);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    for(Donation donation: batch) {
+                        if(!rs.next())
+                            throw new SQLException("Missing generated key for batched donation.");
+                        donation.setId(rs.getLong(1));
+                    }
+                }
+            }
+        }
+    }
+
+    private void stageDonations(Connection conn, List<Donation> donations) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TEMP TABLE donation_batch (ord INTEGER PRIMARY KEY, family_id INTEGER, fund_id INTEGER, " +
+                                                           "amount FLOAT, deductible_amount FLOAT, date DATE, type TEXT, " +
+                                                           "check_number BIGINT, transaction_id TEXT, batch_number INTEGER) " +
+                         "ON COMMIT DROP");
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO donation_batch (ord, family_id, fund_id, amount, deductible_amount, date, type, " +
+                                            "check_number, transaction_id, batch_number) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            int ord = 0;
+            for(Donation donation: donations) {
+                stmt.setInt(1, ord++);
+                stmt.setInt(2, donation.getFamilyId());
+                stmt.setInt(3, donation.getFundId());
+                stmt.setFloat(4, donation.getAmount());
+                stmt.setFloat(5, donation.getDeductibleAmount());
+                stmt.setObject(6, convert(donation.getDonationDate()));
+                stmt.setString(7, stringify(donation.getDonationType()));
+                stmt.setLong(8, donation.getCheckNumber());
+                stmt.setString(9, donation.getTransactionId());
+                stmt.setInt(10, donation.getBatchNumber());
+                stmt.addBatch();
+                if(ord % BATCH_CHUNK_SIZE == 0)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    // Same matching rules as createDonationIfUnique: transaction, batch and check numbers only count when provided.
+    // Amounts are staged as FLOAT like donations and bound with setFloat like inserts, so equal gifts compare equal.
+    private Donation[] findStagedDuplicates(Connection conn, int batchSize) throws SQLException {
+        Donation[] matches = new Donation[batchSize];
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT DISTINCT ON (b.ord) b.ord, d.*, f.name AS fund_name, fam.surname AS family_name, p.name AS recorder_name " +
+                "FROM donation_batch b " +
+                "JOIN donations d ON d.family_id=b.family_id AND d.fund_id=b.fund_id AND d.amount=b.amount " +
+                    "AND d.deductible_amount=b.deductible_amount AND d.date=b.date AND d.type=b.type " +
+                    "AND (b.transaction_id IS NULL OR b.transaction_id='' OR d.transaction_id=b.transaction_id) " +
+                    "AND (b.batch_number <= 0 OR d.batch_number=b.batch_number) " +
+                    "AND (b.check_number <= 0 OR d.check_number=b.check_number) " +
+                "LEFT JOIN funds f ON d.fund_id=f.id " +
+                "LEFT JOIN families fam ON d.family_id=fam.id " +
+                "LEFT JOIN people p ON d.recorder_id=p.id " +
+                "WHERE d.org_id=? " +
+                "ORDER BY b.ord, d.id")) {
+            stmt.setInt(1, OrganizationContext.orgId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while(rs.next())
+                    matches[rs.getInt("ord")] = processRow(rs);
+            }
+        }
+        return matches;
+    }
+
+    // The fields every match requires. Transaction, batch and check numbers are checked by matchesOptional.
+    private static String duplicateKey(Donation donation) {
+        return String.join("|", Integer.toString(donation.getFamilyId()), Integer.toString(donation.getFundId()),
+                Float.toString(donation.getAmount()), Float.toString(donation.getDeductibleAmount()),
+                String.valueOf(donation.getDonationDate()), String.valueOf(donation.getDonationType()));
+    }
+
+    // The in batch half of findStagedDuplicates' rule: what the new donation leaves unset matches anything.
+    private static boolean matchesOptional(Donation donation, Donation existing) {
+        return (!isSet(donation.getTransactionId()) || donation.getTransactionId().equals(existing.getTransactionId())) &&
+               (donation.getBatchNumber() <= 0 || donation.getBatchNumber() == existing.getBatchNumber()) &&
+               (donation.getCheckNumber() <= 0 || donation.getCheckNumber() == existing.getCheckNumber());
+    }
+
+    private void populateInsert(PreparedStatement stmt, Donation donation) throws SQLException {
+        stmt.setInt(1, donation.getFamilyId());
+        stmt.setInt(2, donation.getFundId());
+        setNullableId(stmt, 3, donation.getPledgeId());
+        stmt.setFloat(4, donation.getAmount());
+        stmt.setFloat(5, donation.getDeductibleAmount());
+        stmt.setObject(6, convert(donation.getDonationDate()));
+        stmt.setString(7, stringify(donation.getDonationType()));
+        stmt.setLong(8, donation.getCheckNumber());
+        stmt.setString(9, donation.getTransactionId());
+        stmt.setInt(10, donation.getBatchNumber());
+        stmt.setString(11, donation.getNotes());
+        stmt.setObject(12, convert(donation.getRecordedTime()));
+        setNullableId(stmt, 13, donation.getRecorderId());
+        stmt.setInt(14, OrganizationContext.orgId());
+    }
+
+    private static void setNullableId(PreparedStatement stmt, int index, int id) throws SQLException {
+        if(id > 0)
+            stmt.setInt(index, id);
+        else
+            stmt.setNull(index, Types.INTEGER);
+    }
+
     @Override
     protected Donation processRow(ResultSet rs) throws SQLException {
         Donation donation = new Donation();
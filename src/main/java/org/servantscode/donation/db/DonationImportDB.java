@@ -0,0 +1,258 @@
+package org.servantscode.donation.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.servantscode.commons.db.DBAccess;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.Donation;
+import org.servantscode.donation.DonationImportSummary;
+import org.servantscode.donation.DonationImportSummary.Rejection;
+import org.servantscode.donation.ServiceConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Bulk donation import. The csv is copied as text into a temp staging table, then validated, matched to families,
+ * funds and pledges, and de-duplicated with set based statements before one INSERT ... SELECT into donations.
+ * Everything happens in a single transaction; a file either imports all of its acceptable rows or nothing.
+ * Values are only cast once the checks above have proven the cast safe, so a bad cell rejects its row, not the file.
+ */
+public class DonationImportDB extends DBAccess {
+    private static final Logger LOG = LogManager.getLogger(DonationImportDB.class);
+
+    private static final int IMPORT_MAX_REJECTIONS = ServiceConfig.getInt("DONATION_IMPORT_MAX_REJECTIONS", 1000);
+
+    public static final List<String> IMPORT_COLUMNS = asList("envelope_number", "family_id", "fund_id", "amount",
+            "deductible_amount", "date", "type", "check_number", "transaction_id", "batch_number", "notes");
+
+    private static final String INT = "'^-?\\d{1,9}$'";
+    private static final String BIGINT = "'^\\d{1,18}$'";
+    // Bounded well inside REAL's range so the cast below can't fail
+    private static final String DECIMAL = "'^-?\\d{1,9}(\\.\\d{1,4})?$'";
+    private static final String DATE = "'^\\d{4}-(0[1-9]|1[0-2])-(0[1-9]|[12]\\d|3[01])$'";
+
+    // First failing check wins, so order goes from malformed input to unresolvable references.
+    private static final String[][] VALIDATIONS = {
+        {"amount IS NULL OR amount !~ " + DECIMAL, "Invalid amount"},
+        {"deductible_amount !~ " + DECIMAL, "Invalid deductible amount"},
+        {"date IS NULL OR date !~ " + DATE + " OR import_date(date) IS NULL", "Invalid date (expected yyyy-mm-dd)"},
+        {"fund_id IS NULL OR fund_id !~ " + INT, "Invalid fund id"},
+        {"family_id IS NULL AND envelope_number IS NULL", "Family id or envelope number required"},
+        {"family_id !~ " + INT, "Invalid family id"},
+        {"envelope_number !~ " + INT, "Invalid envelope number"},
+        {"check_number !~ " + BIGINT, "Invalid check number"},
+        {"batch_number !~ " + INT, "Invalid batch number"},
+        {"upper(type) NOT IN (" + Arrays.stream(Donation.DonationType.values()).map(t -> "'" + t + "'").collect(joining(", ")) + ")",
+                "Unknown donation type"},
+    };
+
+    public DonationImportSummary importCsv(InputStream csv, int recorderId) throws IOException {
+        List<String> columns = readHeader(csv);
+
+        try (Connection conn = getConnection()) {
+            if(!conn.isWrapperFor(PGConnection.class))
+                throw new IllegalStateException("Donation import requires a postgres connection.");
+
+            conn.setAutoCommit(false);
+            try {
+                long start = System.currentTimeMillis();
+                createStagingTable(conn);
+
+                String copySql = String.format("COPY donation_import (%s) FROM STDIN WITH (FORMAT csv)", String.join(", ", columns));
+                long rows;
+                try {
+                    rows = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql, csv);
+                } catch (SQLException e) {
+                    throw new IllegalArgumentException("Could not read import file: " + e.getMessage(), e);
+                }
+
+                int orgId = OrganizationContext.orgId();
+                validate(conn);
+                resolve(conn, orgId);
+                markDuplicates(conn, orgId);
+                int accepted = insertAccepted(conn, orgId, recorderId);
+
+                DonationImportSummary summary = summarize(conn);
+                summary.setAccepted(accepted);
+                conn.commit();
+
+                if(accepted > 0) {
+                    CountCache.invalidate();
+                    DonationAnalyticsDB.invalidate();
+                }
+                LOG.info(String.format("Imported %d of %d donation rows (%d duplicates, %d rejected) in %dms.",
+                        accepted, rows, summary.getDuplicates(), summary.getRejected(), System.currentTimeMillis() - start));
+                return summary;
+            } catch (SQLException | IOException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not import donations.", e);
+        }
+    }
+
+    // ----- Private -----
+    // Reads the header line directly from the stream so the remainder can be handed to COPY untouched.
+    private List<String> readHeader(InputStream csv) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = csv.read()) >= 0 && b != '\n')
+            line.write(b);
+
+        String header = new String(line.toByteArray(), StandardCharsets.UTF_8).replace("\uFEFF", "").trim();
+        if(header.isEmpty())
+            throw new IllegalArgumentException("Import file is missing its header row.");
+
+        List<String> columns = new ArrayList<>();
+        for(String column: header.split(",")) {
+            String name = column.trim().replace("\"", "").toLowerCase();
+            if(!IMPORT_COLUMNS.contains(name))
+                throw new IllegalArgumentException("Unknown import column: " + name + ". Allowed: " + String.join(", ", IMPORT_COLUMNS));
+            if(columns.contains(name))
+                throw new IllegalArgumentException("Duplicate import column: " + name);
+            columns.add(name);
+        }
+
+        for(String required: asList("amount", "date", "fund_id")) {
+            if(!columns.contains(required))
+                throw new IllegalArgumentException("Import file must include a " + required + " column.");
+        }
+        if(!columns.contains("family_id") && !columns.contains("envelope_number"))
+            throw new IllegalArgumentException("Import file must include a family_id or envelope_number column.");
+
+        return columns;
+    }
+
+    private void createStagingTable(Connection conn) throws SQLException {
+        String textColumns = IMPORT_COLUMNS.stream().map(c -> c + " TEXT").collect(joining(", "));
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TEMP TABLE donation_import (line_no SERIAL PRIMARY KEY, " + textColumns + ", " +
+                                                            "reject_reason TEXT, " +
+                                                            "duplicate BOOLEAN NOT NULL DEFAULT false, " +
+                                                            "r_family_id INTEGER, r_fund_id INTEGER, r_pledge_id INTEGER, " +
+                                                            "r_amount FLOAT, r_deductible_amount FLOAT, r_date DATE, r_type TEXT, " +
+                                                            "r_check_number BIGINT, r_batch_number INTEGER) " +
+                         "ON COMMIT DROP");
+        }
+    }
+
+    private void validate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            // Blank cells count as missing
+            stmt.executeUpdate("UPDATE donation_import SET " + IMPORT_COLUMNS.stream()
+                    .filter(c -> !c.equals("notes"))
+                    .map(c -> String.format("%s=NULLIF(trim(%s), '')", c, c)).collect(joining(", ")));
+
+            for(String[] check: VALIDATIONS)
+                stmt.executeUpdate(String.format("UPDATE donation_import SET reject_reason='%s' WHERE reject_reason IS NULL AND (%s)",
+                        check[1], check[0]));
+
+            // Amounts go through real as the service's own writes do (setFloat), so equal gifts compare equal in FLOAT.
+            stmt.executeUpdate("UPDATE donation_import SET " +
+                    "r_family_id=family_id::int, " +
+                    "r_fund_id=fund_id::int, " +
+                    "r_amount=amount::real, " +
+                    "r_deductible_amount=COALESCE(deductible_amount, amount)::real, " +
+                    "r_date=import_date(date), " +
+                    "r_type=COALESCE(upper(type), 'UNKNOWN'), " +
+                    "r_check_number=COALESCE(check_number::bigint, 0), " +
+                    "r_batch_number=COALESCE(batch_number::int, 0) " +
+                    "WHERE reject_reason IS NULL");
+        }
+    }
+
+    private void resolve(Connection conn, int orgId) throws SQLException {
+        // An explicit family id wins over the envelope number
+        update(conn, orgId, "UPDATE donation_import b SET r_family_id=f.id FROM families f " +
+                "WHERE b.reject_reason IS NULL AND b.r_family_id IS NULL AND f.envelope_number=b.envelope_number::int AND f.org_id=?");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE donation_import SET reject_reason='Unknown envelope number' " +
+                    "WHERE reject_reason IS NULL AND r_family_id IS NULL");
+        }
+        update(conn, orgId, "UPDATE donation_import b SET reject_reason='Unknown family' " +
+                "WHERE b.reject_reason IS NULL AND NOT EXISTS (SELECT 1 FROM families f WHERE f.id=b.r_family_id AND f.org_id=?)");
+        update(conn, orgId, "UPDATE donation_import b SET reject_reason='Unknown fund' " +
+                "WHERE b.reject_reason IS NULL AND NOT EXISTS (SELECT 1 FROM funds f WHERE f.id=b.r_fund_id AND f.org_id=?)");
+
+        // Same choice as PledgeDB.getRelaventPledgeId: lowest id pledge covering the donation date.
+        update(conn, orgId, "UPDATE donation_import b SET r_pledge_id=(" +
+                "SELECT p.id FROM pledges p WHERE p.family_id=b.r_family_id AND p.fund_id=b.r_fund_id " +
+                "AND p.pledge_start <= b.r_date AND p.pledge_end >= b.r_date AND p.org_id=? ORDER BY p.id LIMIT 1) " +
+                "WHERE b.reject_reason IS NULL");
+    }
+
+    // Same matching rules as DonationDB.createDonationsIfUnique. Repeats inside the file keep their first row.
+    private void markDuplicates(Connection conn, int orgId) throws SQLException {
+        update(conn, orgId, "UPDATE donation_import b SET duplicate=true " +
+                "WHERE b.reject_reason IS NULL AND EXISTS (SELECT 1 FROM donations d " +
+                    "WHERE d.org_id=? AND d.family_id=b.r_family_id AND d.fund_id=b.r_fund_id AND d.amount=b.r_amount " +
+                    "AND d.deductible_amount=b.r_deductible_amount AND d.date=b.r_date AND d.type=b.r_type " +
+                    "AND (b.transaction_id IS NULL OR d.transaction_id=b.transaction_id) " +
+                    "AND (b.r_batch_number <= 0 OR d.batch_number=b.r_batch_number) " +
+                    "AND (b.r_check_number <= 0 OR d.check_number=b.r_check_number))");
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE donation_import b SET duplicate=true FROM (" +
+                    "SELECT line_no, row_number() OVER (PARTITION BY r_family_id, r_fund_id, r_amount, r_deductible_amount, r_date, " +
+                                                   "r_type, transaction_id, r_batch_number, r_check_number ORDER BY line_no) AS n " +
+                    "FROM donation_import WHERE reject_reason IS NULL AND NOT duplicate) x " +
+                    "WHERE b.line_no=x.line_no AND x.n > 1");
+        }
+    }
+
+    private int insertAccepted(Connection conn, int orgId, int recorderId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO donations (family_id, fund_id, pledge_id, amount, deductible_amount, date, type, " +
+                                       "check_number, transaction_id, batch_number, notes, recorded_time, recorder_id, org_id) " +
+                "SELECT r_family_id, r_fund_id, r_pledge_id, r_amount, r_deductible_amount, r_date, r_type, " +
+                       "r_check_number, transaction_id, r_batch_number, notes, ?, ?, ? " +
+                "FROM donation_import WHERE reject_reason IS NULL AND NOT duplicate ORDER BY line_no")) {
+            stmt.setObject(1, convert(ZonedDateTime.now()));
+            stmt.setInt(2, recorderId);
+            stmt.setInt(3, orgId);
+            return stmt.executeUpdate();
+        }
+    }
+
+    private DonationImportSummary summarize(Connection conn) throws SQLException {
+        DonationImportSummary summary = new DonationImportSummary();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT count(1), " +
+                    "count(1) FILTER (WHERE reject_reason IS NOT NULL), " +
+                    "count(1) FILTER (WHERE reject_reason IS NULL AND duplicate) FROM donation_import")) {
+                if(rs.next()) {
+                    summary.setRows(rs.getInt(1));
+                    summary.setRejected(rs.getInt(2));
+                    summary.setDuplicates(rs.getInt(3));
+                }
+            }
+
+            try (ResultSet rs = stmt.executeQuery("SELECT line_no, reject_reason FROM donation_import " +
+                    "WHERE reject_reason IS NOT NULL ORDER BY line_no LIMIT " + IMPORT_MAX_REJECTIONS)) {
+                while(rs.next())
+                    summary.getRejections().add(new Rejection(rs.getInt(1), rs.getString(2)));
+            }
+        }
+        return summary;
+    }
+
+    private void update(Connection conn, int orgId, String sql) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, orgId);
+            stmt.executeUpdate();
+        }
+    }
+}
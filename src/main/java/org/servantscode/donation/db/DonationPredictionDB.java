@@ -0,0 +1,115 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.commons.db.DBAccess;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.BulkPredictionResponse;
+import org.servantscode.donation.Donation;
+import org.servantscode.donation.DonationPrediction;
+import org.servantscode.donation.FamilyGivingInfo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Donation entry predictions. The family, its active pledge increment for the fund and its last gift to the fund
+ * (from last_donation, maintained by trigger) come back from a single indexed query by family id.
+ */
+public class DonationPredictionDB extends DBAccess {
+
+    private static final String PREDICTION_SELECT =
+            "SELECT fam.id, fam.surname, fam.envelope_number, ld.donation_id AS last_id, ld.amount AS last_amount, ld.type AS last_type, " +
+                   "pl.id AS pledge_id, pl.pledge_increment " +
+            "FROM families fam " +
+            "LEFT JOIN last_donation ld ON ld.org_id=fam.org_id AND ld.family_id=fam.id AND ld.fund_id=? " +
+            "LEFT JOIN LATERAL (SELECT p.id, p.pledge_increment FROM pledges p " +
+                               "WHERE p.org_id=fam.org_id AND p.family_id=fam.id AND p.fund_id=? " +
+                               "AND p.pledge_start <= NOW() AND p.pledge_end >= NOW() ORDER BY p.id LIMIT 1) pl ON true " +
+            "WHERE fam.org_id=? ";
+
+    // The family is resolved through FamilyLookupCache first, so envelopes keyed again during a counting session, and
+    // mistyped ones, cost no round trip to families. The prediction itself then comes from one query by family id.
+    public DonationPrediction getPrediction(int familyId, int envelopeNumber, int fundId) {
+        // Family id wins when both are given
+        FamilyGivingInfo family = familyId > 0? familyDB.getFamilyPledgeById(familyId):
+                                                familyDB.getFamilyPledgeByEnvelope(envelopeNumber);
+        if(family == null)
+            return null;
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(PREDICTION_SELECT + "AND fam.id=?")) {
+
+            stmt.setInt(1, fundId);
+            stmt.setInt(2, fundId);
+            stmt.setInt(3, OrganizationContext.orgId());
+            stmt.setInt(4, family.getId());
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next()? processRow(rs): null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not predict donation for family: " + familyId + " envelope: " + envelopeNumber, e);
+        }
+    }
+
+    // One query for a whole counting session. Whatever was asked for and not found is listed as unknown.
+    // Envelopes resolve to the lowest family id holding them, as in getPrediction.
+    public BulkPredictionResponse getPredictions(Collection<Integer> familyIds, Collection<Integer> envelopeNumbers, int fundId) {
+        String sql = PREDICTION_SELECT + "AND (fam.id = ANY(?) OR fam.id IN " +
+                "(SELECT DISTINCT ON (env.envelope_number) env.id FROM families env " +
+                "WHERE env.org_id=? AND env.envelope_number = ANY(?) ORDER BY env.envelope_number, env.id)) " +
+                "ORDER BY fam.id";
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, fundId);
+            stmt.setInt(2, fundId);
+            stmt.setInt(3, OrganizationContext.orgId());
+            stmt.setArray(4, conn.createArrayOf("integer", familyIds.toArray()));
+            stmt.setInt(5, OrganizationContext.orgId());
+            stmt.setArray(6, conn.createArrayOf("integer", envelopeNumbers.toArray()));
+
+            BulkPredictionResponse response = new BulkPredictionResponse();
+            Set<Integer> foundFamilies = new HashSet<>();
+            Set<Integer> foundEnvelopes = new HashSet<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while(rs.next()) {
+                    DonationPrediction pred = processRow(rs);
+                    response.getPredictions().add(pred);
+                    foundFamilies.add(pred.getFamilyId());
+                    foundEnvelopes.add(pred.getEnvelopeNumber());
+                }
+            }
+
+            familyIds.stream().filter(id -> !foundFamilies.contains(id)).distinct().forEach(response.getUnknownFamilies()::add);
+            envelopeNumbers.stream().filter(env -> !foundEnvelopes.contains(env)).distinct().forEach(response.getUnknownEnvelopes()::add);
+            return response;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not predict donations for " + (familyIds.size() + envelopeNumbers.size()) + " families.", e);
+        }
+    }
+
+    // ----- Private -----
+    private DonationPrediction processRow(ResultSet rs) throws SQLException {
+        DonationPrediction pred = new DonationPrediction();
+        pred.setFamilyId(rs.getInt("id"));
+        pred.setFamilyName(rs.getString("surname"));
+        pred.setEnvelopeNumber(rs.getInt("envelope_number"));
+
+        rs.getLong("last_id");
+        if(!rs.wasNull()) {
+            String lastType = rs.getString("last_type");
+            pred.setAmount(rs.getFloat("last_amount"));
+            pred.setDonationType(lastType != null? Donation.DonationType.valueOf(lastType): null);
+        }
+
+        rs.getInt("pledge_id");
+        if(!rs.wasNull())
+            pred.setAmount(rs.getFloat("pledge_increment")); // Prefer the amount from the pledge if available.
+        return pred;
+    }
+}
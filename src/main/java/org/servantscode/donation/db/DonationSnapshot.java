@@ -0,0 +1,338 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.donation.Donation;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * One org's donations held as parallel primitive arrays, sorted by donation id.
+ *
+ * Memory: each donation costs BYTES_PER_DONATION (29) bytes - long id, int family, int fund, int epoch day, long cents
+ * and a byte type - or about 29MB per million donations. Arrays grow by half again when full, so a snapshot can hold
+ * up to ~43MB per million before the next growth or compaction.
+ */
+public class DonationSnapshot {
+    public static final int BYTES_PER_DONATION = Long.BYTES + Integer.BYTES*3 + Long.BYTES + Byte.BYTES;
+
+    public enum Dimension {FUND, TYPE, MONTH, FAMILY}
+
+    private static final byte DELETED = Byte.MIN_VALUE;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final int SCAN_CHUNK = 64 * 1024;
+    private static final Donation.DonationType[] TYPES = Donation.DonationType.values();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final long loadedTime = System.currentTimeMillis();
+
+    private long[] ids;
+    private int[] familyIds;
+    private int[] fundIds;
+    private int[] days;
+    private long[] cents;
+    private byte[] types;
+    private int size = 0;
+    private int deleted = 0;
+
+    // Deltas that arrive while the initial scan runs are replayed once it finishes.
+    private List<Runnable> pending = new ArrayList<>();
+    private volatile boolean failed = false;
+
+    public static class Filter {
+        public int fundId;
+        public int familyId;
+        public Donation.DonationType type;
+        public LocalDate startDate;
+        public LocalDate endDate;
+    }
+
+    public static class Group {
+        private final EnumMap<Dimension, Object> keys;
+        private long cents;
+        private int count;
+
+        Group(EnumMap<Dimension, Object> keys) {
+            this.keys = keys;
+        }
+
+        public Map<Dimension, Object> getKeys() { return keys; }
+        public long getCents() { return cents; }
+        public int getCount() { return count; }
+    }
+
+    DonationSnapshot(int capacity) {
+        allocate(Math.max(capacity, 1024));
+    }
+
+    // ----- Loading -----
+    void load(long id, int familyId, int fundId, LocalDate date, float amount, String type) {
+        lock.writeLock().lock();
+        try {
+            put(id, familyId, fundId, date, amount, type);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void finishLoading() {
+        lock.writeLock().lock();
+        try {
+            List<Runnable> replay = pending;
+            pending = null;
+            replay.forEach(Runnable::run);
+        } finally {
+            lock.writeLock().unlock();
+            ready.countDown();
+        }
+    }
+
+    void failLoading() {
+        failed = true;
+        ready.countDown();
+    }
+
+    boolean awaitReady(long timeoutSeconds) throws InterruptedException {
+        return ready.await(timeoutSeconds, TimeUnit.SECONDS) && !failed;
+    }
+
+    // ----- Deltas -----
+    void upsert(Donation d) {
+        String type = d.getDonationType() != null? d.getDonationType().toString(): null;
+        apply(() -> put(d.getId(), d.getFamilyId(), d.getFundId(), d.getDonationDate(), d.getAmount(), type));
+    }
+
+    void delete(long id) {
+        apply(() -> {
+            int row = Arrays.binarySearch(ids, 0, size, id);
+            if(row >= 0 && types[row] != DELETED) {
+                types[row] = DELETED;
+                deleted++;
+                if(deleted > 1024 && deleted > size/4)
+                    compact();
+            }
+        });
+    }
+
+    // ----- Queries -----
+    public List<Group> query(Filter filter, Set<Dimension> groupBy) {
+        lock.readLock().lock();
+        try {
+            int rows = size;
+            int chunks = (rows + SCAN_CHUNK - 1)/SCAN_CHUNK;
+            int startDay = filter.startDate != null? (int) filter.startDate.toEpochDay(): Integer.MIN_VALUE;
+            int endDay = filter.endDate != null? (int) filter.endDate.toEpochDay(): Integer.MAX_VALUE;
+            byte type = filter.type != null? (byte) filter.type.ordinal(): DELETED;
+
+            Map<GroupKey, long[]> totals = IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> scan(c*SCAN_CHUNK, Math.min(rows, (c + 1)*SCAN_CHUNK), filter, type, startDay, endDay, groupBy))
+                    .reduce(new HashMap<>(), DonationSnapshot::merge);
+
+            List<Group> groups = new ArrayList<>(totals.size());
+            totals.forEach((key, value) -> {
+                Group group = new Group(key.describe(groupBy));
+                group.cents = value[0];
+                group.count = (int) value[1];
+                groups.add(group);
+            });
+            return groups;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDonationCount() {
+        lock.readLock().lock();
+        try {
+            return size - deleted;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) ids.length * BYTES_PER_DONATION;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getLoadedTime() { return loadedTime; }
+
+    // ----- Private -----
+    private void apply(Runnable delta) {
+        lock.writeLock().lock();
+        try {
+            if(pending != null)
+                pending.add(delta);
+            else
+                delta.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Ids mostly arrive in increasing order, so this is nearly always an append.
+    private void put(long id, int familyId, int fundId, LocalDate date, float amount, String type) {
+        int row = size > 0 && ids[size - 1] < id? -(size + 1): Arrays.binarySearch(ids, 0, size, id);
+        if(row < 0) {
+            row = -(row + 1);
+            if(size == ids.length)
+                allocate(ids.length + (ids.length >> 1));
+            if(row < size)
+                shift(row);
+            size++;
+        } else if(types[row] == DELETED) {
+            deleted--;
+        }
+
+        ids[row] = id;
+        familyIds[row] = familyId;
+        fundIds[row] = fundId;
+        days[row] = date != null? (int) date.toEpochDay(): NO_DATE;
+        cents[row] = Math.round(amount * 100.0);
+        types[row] = (byte) typeOrdinal(type);
+    }
+
+    private static int typeOrdinal(String type) {
+        if(type != null) {
+            for(Donation.DonationType t: TYPES) {
+                if(t.name().equals(type))
+                    return t.ordinal();
+            }
+        }
+        return Donation.DonationType.UNKNOWN.ordinal();
+    }
+
+    private void shift(int row) {
+        int count = size - row;
+        System.arraycopy(ids, row, ids, row + 1, count);
+        System.arraycopy(familyIds, row, familyIds, row + 1, count);
+        System.arraycopy(fundIds, row, fundIds, row + 1, count);
+        System.arraycopy(days, row, days, row + 1, count);
+        System.arraycopy(cents, row, cents, row + 1, count);
+        System.arraycopy(types, row, types, row + 1, count);
+    }
+
+    private void allocate(int capacity) {
+        ids = ids == null? new long[capacity]: Arrays.copyOf(ids, capacity);
+        familyIds = familyIds == null? new int[capacity]: Arrays.copyOf(familyIds, capacity);
+        fundIds = fundIds == null? new int[capacity]: Arrays.copyOf(fundIds, capacity);
+        days = days == null? new int[capacity]: Arrays.copyOf(days, capacity);
+        cents = cents == null? new long[capacity]: Arrays.copyOf(cents, capacity);
+        types = types == null? new byte[capacity]: Arrays.copyOf(types, capacity);
+    }
+
+    private void compact() {
+        int live = 0;
+        for(int i=0; i<size; i++) {
+            if(types[i] == DELETED)
+                continue;
+            ids[live] = ids[i];
+            familyIds[live] = familyIds[i];
+            fundIds[live] = fundIds[i];
+            days[live] = days[i];
+            cents[live] = cents[i];
+            types[live] = types[i];
+            live++;
+        }
+        size = live;
+        deleted = 0;
+    }
+
+    private Map<GroupKey, long[]> scan(int from, int to, Filter filter, byte type, int startDay, int endDay, Set<Dimension> groupBy) {
+        boolean byFund = groupBy.contains(Dimension.FUND);
+        boolean byType = groupBy.contains(Dimension.TYPE);
+        boolean byMonth = groupBy.contains(Dimension.MONTH);
+        boolean byFamily = groupBy.contains(Dimension.FAMILY);
+        boolean dateFiltered = filter.startDate != null || filter.endDate != null;
+
+        Map<GroupKey, long[]> totals = new HashMap<>();
+        for(int i=from; i<to; i++) {
+            byte t = types[i];
+            if(t == DELETED ||
+               (type != DELETED && t != type) ||
+               (filter.fundId > 0 && fundIds[i] != filter.fundId) ||
+               (filter.familyId > 0 && familyIds[i] != filter.familyId))
+                continue;
+
+            int day = days[i];
+            if(dateFiltered && (day == NO_DATE || day < startDay || day > endDay))
+                continue;
+
+            GroupKey key = new GroupKey(byFamily? familyIds[i]: 0, byFund? fundIds[i]: 0,
+                                        byMonth && day != NO_DATE? monthIndex(day): -1, byType? t: 0);
+            long[] total = totals.computeIfAbsent(key, k -> new long[2]);
+            total[0] += cents[i];
+            total[1]++;
+        }
+        return totals;
+    }
+
+    private static Map<GroupKey, long[]> merge(Map<GroupKey, long[]> a, Map<GroupKey, long[]> b) {
+        Map<GroupKey, long[]> into = a.size() >= b.size()? a: b;
+        Map<GroupKey, long[]> from = into == a? b: a;
+        from.forEach((key, value) -> into.merge(key, value, (x, y) -> new long[] {x[0] + y[0], x[1] + y[1]}));
+        return into;
+    }
+
+    // year*12 + (month - 1) straight from the epoch day, without building a LocalDate per row.
+    static int monthIndex(int epochDay) {
+        long z = epochDay + 719468L;
+        long era = (z >= 0? z: z - 146096)/146097;
+        long doe = z - era*146097;
+        long yoe = (doe - doe/1460 + doe/36524 - doe/146096)/365;
+        long year = yoe + era*400;
+        long doy = doe - (365*yoe + yoe/4 - yoe/100);
+        long mp = (5*doy + 2)/153;
+        long month = mp < 10? mp + 3: mp - 9;
+        if(month <= 2)
+            year++;
+        return (int) (year*12 + month - 1);
+    }
+
+    private static final class GroupKey {
+        private final long high;
+        private final long low;
+
+        GroupKey(int familyId, int fundId, int month, byte type) {
+            this.high = ((long) familyId << 32) | (fundId & 0xffffffffL);
+            this.low = ((long) month << 8) | (type & 0xff);
+        }
+
+        EnumMap<Dimension, Object> describe(Set<Dimension> groupBy) {
+            EnumMap<Dimension, Object> keys = new EnumMap<>(Dimension.class);
+            if(groupBy.contains(Dimension.FAMILY))
+                keys.put(Dimension.FAMILY, (int) (high >> 32));
+            if(groupBy.contains(Dimension.FUND))
+                keys.put(Dimension.FUND, (int) high);
+            if(groupBy.contains(Dimension.MONTH)) {
+                int month = (int) (low >> 8);
+                keys.put(Dimension.MONTH, month < 0? null: String.format("%04d-%02d", month/12, month%12 + 1));
+            }
+            if(groupBy.contains(Dimension.TYPE))
+                keys.put(Dimension.TYPE, TYPES[(int) (low & 0xff)]);
+            return keys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof GroupKey))
+                return false;
+            GroupKey other = (GroupKey) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high*31 + low);
+        }
+    }
+}
@@ -6,7 +6,10 @@ import org.servantscode.commons.db.EasyDB;
 import org.servantscode.commons.db.ReportStreamingOutput;
 import org.servantscode.commons.search.FieldTransformer;
 import org.servantscode.commons.search.QueryBuilder;
+import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.donation.FamilyContributions;
+import org.servantscode.donation.PageCursor;
+import org.servantscode.donation.PaginatedCursorResponse;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
@@ -17,8 +20,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
 
+import static org.servantscode.commons.StringUtils.isSet;
+
 public class FamilyContributionDB extends EasyDB<FamilyContributions> {
     private static final Logger LOG = LogManager.getLogger(FamilyContributionDB.class);
 
@@ -33,16 +39,44 @@ public class FamilyContributionDB extends EasyDB<FamilyContributions> {
         super(FamilyContributions.class, "surname", FIELD_MAP);
     }
 
+    static final String REBUILD_ROLLUP_SQL =
+            "INSERT INTO giving_rollup_monthly (org_id, family_id, fund_id, month, total_amount, donation_count) " +
+            "SELECT org_id, family_id, fund_id, date_trunc('month', date)::date, SUM(amount), COUNT(amount) FROM donations " +
+            "WHERE org_id IS NOT NULL AND family_id IS NOT NULL AND date IS NOT NULL AND amount IS NOT NULL " +
+            "GROUP BY org_id, family_id, fund_id, date_trunc('month', date)";
+
+    // Per family totals for [start, end). Whole months come from giving_rollup_monthly (kept by trigger); only the
+    // partial months at either edge of the range read donation rows.
+    private static final String FAMILY_TOTALS_SQL =
+            "(SELECT family_id, SUM(amount) AS amount, SUM(cnt) AS cnt FROM (" +
+                "SELECT family_id, total_amount AS amount, donation_count AS cnt FROM giving_rollup_monthly " +
+                    "WHERE org_id=? AND month>=? AND month<? " +
+                "UNION ALL " +
+                "SELECT family_id, amount, 1 FROM donations " +
+                    "WHERE org_id=? AND amount IS NOT NULL AND ((date>=? AND date<?) OR (date>=? AND date<?))" +
+            ") t GROUP BY family_id) d ON f.id=d.family_id";
+
     private QueryBuilder data() {
-        return select("f.*", "h.name AS head_name", "s.name AS spouse_name", "COALESCE(SUM(d.amount),0) AS total_amount", "COUNT(d.amount) AS donation_count");
+        return select("f.*", "h.name AS head_name", "s.name AS spouse_name", "COALESCE(MAX(d.amount),0) AS total_amount", "COALESCE(MAX(d.cnt),0) AS donation_count");
     }
 
     private QueryBuilder select(QueryBuilder fields, LocalDate startDate, LocalDate endDate) {
+        LocalDate endExclusive = endDate.plusDays(1);
+        LocalDate firstWholeMonth = startDate.getDayOfMonth() == 1? startDate: startDate.withDayOfMonth(1).plusMonths(1);
+        LocalDate wholeMonthsEnd = endExclusive.withDayOfMonth(1);
+        if(!firstWholeMonth.isBefore(wholeMonthsEnd)) {
+            // No whole month in range. Everything is read raw.
+            firstWholeMonth = endExclusive;
+            wholeMonthsEnd = endExclusive;
+        }
+        int orgId = OrganizationContext.orgId();
+
         return fields.from(data().from("families f")
                             .leftJoin("people h ON h.family_id = f.id AND h.head_of_house = true")
                             .leftJoin("relationships r ON h.id=r.subject_id AND r.relationship = 'SPOUSE'")
                             .leftJoin("people s ON s.id = r.other_id")
-                            .leftJoin("donations d ON f.id=d.family_id AND d.date>=? and d.date<=?", startDate, endDate)
+                            .leftJoin(FAMILY_TOTALS_SQL, orgId, firstWholeMonth, wholeMonthsEnd,
+                                      orgId, startDate, firstWholeMonth, wholeMonthsEnd, endExclusive)
                             .inOrg("f.org_id")
                             .groupBy("f.id", "h.name", "s.name"),
                 "query");
@@ -60,16 +94,83 @@ public class FamilyContributionDB extends EasyDB<FamilyContributions> {
                     .page(sort, start, count));
     }
 
+    public PaginatedCursorResponse<FamilyContributions> getFamilyTotalDonationPage(LocalDate startDate, LocalDate endDate,
+                                                                                  int start, int count, String sort, String search) {
+        String cacheKey = "contributions:" + startDate + ":" + endDate;
+        CountCache.Counts counts = CountCache.get(cacheKey, search);
+        if(counts != null) {
+            List<FamilyContributions> contributions = getFamilyTotalDonations(startDate, endDate, start, count, sort, search);
+            return new PaginatedCursorResponse<>(start, contributions.size(), counts.getCount(), contributions);
+        }
+
+        long generation = CountCache.generation();
+        QueryBuilder query = select(selectAll().select("COUNT(1) OVER () AS total_count"), startDate, endDate)
+                .search(searchParser.parse(search))
+                .page(sort, start, count);
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<FamilyContributions> contributions = new ArrayList<>();
+            int totalCount = 0;
+            while(rs.next()) {
+                contributions.add(processRow(rs));
+                totalCount = rs.getInt("total_count");
+            }
+
+            if(contributions.isEmpty() && start > 0)
+                totalCount = getFamilyTotalDonationCount(startDate, endDate, search);
+
+            CountCache.put(cacheKey, search, generation, new CountCache.Counts(totalCount, 0f, false));
+            return new PaginatedCursorResponse<>(start, contributions.size(), totalCount, contributions);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve family contribution page.", e);
+        }
+    }
+
+    // Keyset paging by surname. Totals are only computed for the first page.
+    public PaginatedCursorResponse<FamilyContributions> getFamilyTotalDonationCursorPage(LocalDate startDate, LocalDate endDate,
+                                                                                        String cursor, int count, String search) {
+        boolean firstPage = !isSet(cursor);
+        QueryBuilder query = select(firstPage? selectAll().select("COUNT(1) OVER () AS total_count"): selectAll(), startDate, endDate)
+                .search(searchParser.parse(search));
+        if(!firstPage) {
+            PageCursor after = PageCursor.decode(cursor);
+            query.where("(COALESCE(surname, ''), id) > (?, ?)", after.getKey(), (int) after.getId());
+        }
+        query.sort("COALESCE(surname, ''), id").limit(count);
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<FamilyContributions> contributions = new ArrayList<>(count);
+            int totalCount = firstPage? 0: PaginatedCursorResponse.COUNT_NOT_COMPUTED;
+            while(rs.next()) {
+                contributions.add(processRow(rs));
+                if(firstPage)
+                    totalCount = rs.getInt("total_count");
+            }
+
+            PaginatedCursorResponse<FamilyContributions> page =
+                    new PaginatedCursorResponse<>(0, contributions.size(), totalCount, contributions);
+            if(contributions.size() == count && count > 0) {
+                FamilyContributions last = contributions.get(contributions.size() - 1);
+                page.setNextCursor(new PageCursor(last.getFamilyName(), last.getFamilyId()).encode());
+            }
+            return page;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve family contribution page.", e);
+        }
+    }
+
     public StreamingOutput getReportReader(LocalDate startDate, LocalDate endDate, String search, final List<String> fields) {
         QueryBuilder query = select(selectAll(), startDate, endDate).search(searchParser.parse(search));
         return new ReportStreamingOutput(fields) {
             @Override
             public void write(OutputStream output) throws WebApplicationException {
-                try (Connection conn = getConnection();
-                     PreparedStatement stmt = query.prepareStatement(conn);
-                     ResultSet rs = stmt.executeQuery()) {
-
-                    writeCsv(output, rs);
+                try (Connection conn = getConnection()) {
+                    ReportCursor.stream(conn, query, output, (rs, out) -> writeCsv(out, rs));
                 } catch (SQLException | IOException e) {
                     throw new RuntimeException("Could not retrieve donation report for search '" + search + "'", e);
                 }
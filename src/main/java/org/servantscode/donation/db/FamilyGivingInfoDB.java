@@ -15,8 +15,17 @@ public class FamilyGivingInfoDB extends DBAccess {
     //      production network architecture is sorted out. [Greg]
 
     public FamilyGivingInfo getFamilyPledgeByEnvelope(int envelopeNumber) {
+        return FamilyLookupCache.byEnvelope(envelopeNumber, () -> loadFamilyByEnvelope(envelopeNumber));
+    }
+
+    public FamilyGivingInfo getFamilyPledgeById(int familyId) {
+        return FamilyLookupCache.byId(familyId, () -> loadFamilyById(familyId));
+    }
+
+    // ----- Private -----
+    private FamilyGivingInfo loadFamilyByEnvelope(int envelopeNumber) {
         QueryBuilder query = select("id", "surname", "envelope_number").from("families")
-                .where("envelope_number=?", envelopeNumber).inOrg();
+                .where("envelope_number=?", envelopeNumber).inOrg().sort("id").limit(1);
 //        String sql = "SELECT id, surname, envelope_number FROM families WHERE envelope_number=?";
         try (Connection conn = getConnection();
              PreparedStatement stmt = query.prepareStatement(conn)) {
@@ -27,7 +36,7 @@ public class FamilyGivingInfoDB extends DBAccess {
         }
     }
 
-    public FamilyGivingInfo getFamilyPledgeById(int familyId) {
+    private FamilyGivingInfo loadFamilyById(int familyId) {
         QueryBuilder query = select("id", "surname", "envelope_number").from("families")
                 .where("id=?", familyId).inOrg();
 //        String sql = "SELECT id, surname, envelope_number FROM families WHERE id=?";
@@ -40,7 +49,6 @@ public class FamilyGivingInfoDB extends DBAccess {
         }
     }
 
-    // ----- Private -----
     private FamilyGivingInfo processResults(PreparedStatement stmt) throws SQLException {
         try (ResultSet rs = stmt.executeQuery()){
             if(rs.next()) {
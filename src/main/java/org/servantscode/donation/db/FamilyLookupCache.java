@@ -0,0 +1,105 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.FamilyGivingInfo;
+import org.servantscode.donation.ServiceConfig;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Family lookups for donation entry keyed by org plus envelope number or family id.
+ *
+ * Families are owned by another service, so nothing here sees their writes. Entries expire after a TTL, unknown
+ * envelopes are remembered for a shorter one, and invalidate() is available for callers that know better.
+ */
+public class FamilyLookupCache {
+    private static final long TTL_MILLIS = ServiceConfig.getLong("FAMILY_CACHE_TTL_SECONDS", 300) * 1000;
+    private static final long NEGATIVE_TTL_MILLIS = ServiceConfig.getLong("FAMILY_CACHE_NEGATIVE_TTL_SECONDS", 30) * 1000;
+    private static final int MAX_ENTRIES_PER_ORG = ServiceConfig.getInt("FAMILY_CACHE_MAX_ENTRIES", 2048);
+
+    private static final Map<Integer, Map<String, Entry>> CACHE = new ConcurrentHashMap<>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong NEGATIVE_HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    private static class Entry {
+        private final FamilyGivingInfo family;
+        private final long expires;
+
+        Entry(FamilyGivingInfo family) {
+            this.family = family;
+            this.expires = System.currentTimeMillis() + (family != null? TTL_MILLIS: NEGATIVE_TTL_MILLIS);
+        }
+    }
+
+    public static FamilyGivingInfo byEnvelope(int envelopeNumber, Supplier<FamilyGivingInfo> loader) {
+        return lookup("env:" + envelopeNumber, loader);
+    }
+
+    public static FamilyGivingInfo byId(int familyId, Supplier<FamilyGivingInfo> loader) {
+        return lookup("id:" + familyId, loader);
+    }
+
+    public static void invalidate() {
+        CACHE.remove(OrganizationContext.orgId());
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hits = HITS.get();
+        long negativeHits = NEGATIVE_HITS.get();
+        long misses = MISSES.get();
+        long lookups = hits + negativeHits + misses;
+        stats.put("hits", hits);
+        stats.put("negativeHits", negativeHits);
+        stats.put("misses", misses);
+        stats.put("evictions", EVICTIONS.get());
+        stats.put("hitRatio", lookups > 0? (hits + negativeHits)*1.0/lookups: 0.0);
+        stats.put("orgEntries", CACHE.getOrDefault(OrganizationContext.orgId(), Collections.emptyMap()).size());
+        return stats;
+    }
+
+    // ----- Private -----
+    private static FamilyGivingInfo lookup(String key, Supplier<FamilyGivingInfo> loader) {
+        Map<String, Entry> orgEntries = CACHE.computeIfAbsent(OrganizationContext.orgId(), org -> lruMap());
+
+        Entry entry = orgEntries.get(key);
+        if(entry != null && entry.expires > System.currentTimeMillis()) {
+            (entry.family != null? HITS: NEGATIVE_HITS).incrementAndGet();
+            return entry.family;
+        }
+
+        MISSES.incrementAndGet();
+        FamilyGivingInfo family = loader.get();
+        orgEntries.put(key, new Entry(family));
+
+        // A found family answers both kinds of lookup.
+        if(family != null) {
+            orgEntries.put("id:" + family.getId(), new Entry(family));
+            if(family.getEnvelopeNumber() > 0)
+                orgEntries.put("env:" + family.getEnvelopeNumber(), new Entry(family));
+        }
+        return family;
+    }
+
+    private static Map<String, Entry> lruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > MAX_ENTRIES_PER_ORG;
+                if(evict)
+                    EVICTIONS.incrementAndGet();
+                return evict;
+            }
+        });
+    }
+
+    private FamilyLookupCache() {}
+}
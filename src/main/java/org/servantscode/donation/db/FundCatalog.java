@@ -0,0 +1,79 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.Fund;
+import org.servantscode.donation.ServiceConfig;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Each org's funds, loaded whole on first use and kept current by FundDB writes. Entries still expire after
+ * FUND_CACHE_TTL_SECONDS so changes made by another instance are picked up eventually, and callers reload on a miss
+ * before treating a fund as unknown.
+ */
+class FundCatalog {
+    private static final long TTL_MILLIS = ServiceConfig.getLong("FUND_CACHE_TTL_SECONDS", 600) * 1000;
+
+    private static final Map<Integer, Catalog> CACHE = new ConcurrentHashMap<>();
+    // Bumped by every write so a load that raced one isn't published.
+    private static final Map<Integer, AtomicLong> GENERATIONS = new ConcurrentHashMap<>();
+
+    private static class Catalog {
+        private final Map<Integer, Fund> funds = new ConcurrentHashMap<>();
+        private final long expires = System.currentTimeMillis() + TTL_MILLIS;
+    }
+
+    static Map<Integer, Fund> funds(Supplier<List<Fund>> loader) {
+        Catalog catalog = CACHE.get(OrganizationContext.orgId());
+        if(catalog == null || catalog.expires <= System.currentTimeMillis())
+            return reload(loader);
+        return catalog.funds;
+    }
+
+    static Map<Integer, Fund> reload(Supplier<List<Fund>> loader) {
+        int orgId = OrganizationContext.orgId();
+        long generation = generation(orgId).get();
+
+        Catalog loaded = new Catalog();
+        loader.get().forEach(fund -> loaded.funds.put(fund.getId(), fund));
+        if(generation(orgId).get() == generation)
+            CACHE.put(orgId, loaded);
+        return loaded.funds;
+    }
+
+    // Writes only touch a loaded catalog; an unloaded one will read the change from the database.
+    static void put(Fund fund) {
+        generation(OrganizationContext.orgId()).incrementAndGet();
+        Catalog catalog = CACHE.get(OrganizationContext.orgId());
+        if(catalog != null)
+            catalog.funds.put(fund.getId(), copy(fund));
+    }
+
+    static void remove(int fundId) {
+        generation(OrganizationContext.orgId()).incrementAndGet();
+        Catalog catalog = CACHE.get(OrganizationContext.orgId());
+        if(catalog != null)
+            catalog.funds.remove(fundId);
+    }
+
+    static Fund copy(Fund fund) {
+        if(fund == null)
+            return null;
+
+        Fund copy = new Fund();
+        copy.setId(fund.getId());
+        copy.setName(fund.getName());
+        return copy;
+    }
+
+    // ----- Private -----
+    private static AtomicLong generation(int orgId) {
+        return GENERATIONS.computeIfAbsent(orgId, org -> new AtomicLong());
+    }
+
+    private FundCatalog() {}
+}
@@ -11,7 +11,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static org.servantscode.commons.StringUtils.isSet;
@@ -53,16 +58,22 @@ public class FundDB extends DBAccess {
         }
     }
 
+    // Served from the org's fund catalog. Funds change a few times a year and this sits on every donation write.
+    // A miss may just be a fund created elsewhere since the catalog loaded, so it reloads once before giving up.
     public Fund getFund(int id) {
-        QueryBuilder query = selectAll().from("funds").withId(id).inOrg();
-//        String sql = "SELECT * FROM funds WHERE id=?";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = query.prepareStatement(conn) ) {
+        Fund fund = FundCatalog.funds(this::loadAllFunds).get(id);
+        if(fund == null && id > 0)
+            fund = FundCatalog.reload(this::loadAllFunds).get(id);
+        return FundCatalog.copy(fund);
+    }
 
-            return firstOrNull(processFundResults(stmt));
-        } catch (SQLException e) {
-            throw new RuntimeException("Could not retrieve fund: " + id, e);
-        }
+    // Checks a whole batch against the catalog in one pass, reloading once if anything is missing. Ids <= 0 are
+    // always unknown.
+    public Set<Integer> findUnknownFunds(Collection<Integer> fundIds) {
+        Set<Integer> unknown = unknownFunds(fundIds, FundCatalog.funds(this::loadAllFunds));
+        if(unknown.stream().anyMatch(id -> id > 0))
+            unknown = unknownFunds(fundIds, FundCatalog.reload(this::loadAllFunds));
+        return unknown;
     }
 
     public Fund createFund(Fund fund) {
@@ -81,6 +92,7 @@ public class FundDB extends DBAccess {
                 if (rs.next())
                     fund.setId(rs.getInt(1));
             }
+            FundCatalog.put(fund);
             return fund;
         } catch (SQLException e) {
             throw new RuntimeException("Could not create fund: " + fund.getName(), e);
@@ -96,7 +108,10 @@ public class FundDB extends DBAccess {
             stmt.setInt(2, fund.getId());
             stmt.setInt(3, OrganizationContext.orgId());
 
-            return stmt.executeUpdate() > 0;
+            boolean updated = stmt.executeUpdate() > 0;
+            if(updated)
+                FundCatalog.put(fund);
+            return updated;
         } catch (SQLException e) {
             throw new RuntimeException("Could not update fund: " + fund.getName(), e);
         }
@@ -110,13 +125,31 @@ public class FundDB extends DBAccess {
             stmt.setInt(1, fundId);
             stmt.setInt(2, OrganizationContext.orgId());
 
-            return stmt.executeUpdate() > 0;
+            boolean deleted = stmt.executeUpdate() > 0;
+            if(deleted)
+                FundCatalog.remove(fundId);
+            return deleted;
         } catch (SQLException e) {
             throw new RuntimeException("Could not delete fund with id: " + fundId, e);
         }
     }
 
     // ----- Private -----
+    private static Set<Integer> unknownFunds(Collection<Integer> fundIds, Map<Integer, Fund> funds) {
+        return fundIds.stream().filter(id -> !funds.containsKey(id)).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private List<Fund> loadAllFunds() {
+        QueryBuilder query = selectAll().from("funds").inOrg();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn)) {
+
+            return processFundResults(stmt);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve funds.", e);
+        }
+    }
+
     private List<Fund> processFundResults(PreparedStatement stmt) throws SQLException {
         try (ResultSet rs = stmt.executeQuery()){
             List<Fund> funds = new ArrayList<>();
@@ -1,12 +1,15 @@
 package org.servantscode.donation.db;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.db.EasyDB;
 import org.servantscode.commons.db.ReportStreamingOutput;
-import org.servantscode.commons.rest.PaginatedResponse;
 import org.servantscode.commons.search.InsertBuilder;
 import org.servantscode.commons.search.QueryBuilder;
 import org.servantscode.commons.search.UpdateBuilder;
 import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.PageCursor;
+import org.servantscode.donation.PaginatedCursorResponse;
 import org.servantscode.donation.Pledge;
 
 import javax.ws.rs.DefaultValue;
@@ -20,12 +23,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import static org.servantscode.commons.StringUtils.isSet;
+
 public class PledgeDB extends EasyDB<Pledge> {
+    private static final Logger LOG = LogManager.getLogger(PledgeDB.class);
+
 
     private static final Map<String, String> FIELD_MAP = new HashMap<>();
 
@@ -42,6 +51,21 @@ public class PledgeDB extends EasyDB<Pledge> {
         FIELD_MAP.put("pledgeStatus", "pledge_status");
     }
 
+    // pledge_progress is maintained by the donations_pledge_progress trigger (see DBUpgrade).
+    static final String REBUILD_PROGRESS_SQL =
+            "INSERT INTO pledge_progress (pledge_id, total_donations, donation_count) " +
+            "SELECT pledge_id, COALESCE(SUM(amount), 0), COUNT(1) FROM donations WHERE pledge_id IS NOT NULL GROUP BY pledge_id";
+
+    private static final String PROGRESS_DRIFT_SQL =
+            "SELECT p.id FROM pledges p " +
+            "LEFT JOIN pledge_progress pp ON pp.pledge_id=p.id " +
+            "LEFT JOIN (SELECT pledge_id, SUM(amount) AS total_donations, COUNT(1) AS donation_count " +
+                       "FROM donations WHERE pledge_id IS NOT NULL GROUP BY pledge_id) d ON d.pledge_id=p.id " +
+            "WHERE p.org_id=? " +
+              "AND (COALESCE(pp.donation_count, 0) <> COALESCE(d.donation_count, 0) " +
+                   "OR ABS(COALESCE(pp.total_donations, 0) - COALESCE(d.total_donations, 0)) > 0.005) " +
+            "ORDER BY p.id";
+
     public PledgeDB() {
         super(Pledge.class, "familyName", FIELD_MAP);
     }
@@ -73,9 +97,7 @@ public class PledgeDB extends EasyDB<Pledge> {
                       .from("pledges p")
                       .leftJoin("funds f ON f.id=p.fund_id")
                       .leftJoin("families fam ON fam.id=p.family_id")
-                      .leftJoinLateral(select("pledge_id", "SUM(amount) AS total_donations").from("donations")
-                                      .groupBy("pledge_id"),
-                              "d", "pledge_id=p.id")
+                      .leftJoin("pledge_progress d ON d.pledge_id=p.id")
 //                      .leftJoinLateral(select("family_id", "fund_id", "SUM(amount) AS total_donations").from("donations")
 //                                     .where("date >= p.pledge_start AND date <= p.pledge_end").inOrg()
 //                                     .groupBy("family_id", "fund_id"),
@@ -97,6 +119,76 @@ public class PledgeDB extends EasyDB<Pledge> {
         return get(query);
     }
 
+    public PaginatedCursorResponse<Pledge> getActivePledgePage(int start, int count, String sortField, String search, boolean allowEstimate) {
+        CountCache.Counts counts = CountCache.get("pledges", search);
+        if(counts == null && allowEstimate && !isSet(search))
+            counts = estimateCounts();
+        if(counts != null) {
+            List<Pledge> pledges = getActivePledges(start, count, sortField, search);
+            PaginatedCursorResponse<Pledge> page = new PaginatedCursorResponse<>(start, pledges.size(), counts.getCount(), pledges);
+            page.setCountEstimated(counts.isEstimated());
+            return page;
+        }
+
+        long generation = CountCache.generation();
+        QueryBuilder query = select(selectAll().select("COUNT(1) OVER () AS total_count"))
+                .search(searchParser.parse(search))
+                .page(sortField, start, count);
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<Pledge> pledges = new ArrayList<>();
+            int totalCount = 0;
+            while(rs.next()) {
+                pledges.add(processRow(rs));
+                totalCount = rs.getInt("total_count");
+            }
+
+            if(pledges.isEmpty() && start > 0)
+                totalCount = getActivePledgeCount(search);
+
+            CountCache.put("pledges", search, generation, new CountCache.Counts(totalCount, 0f, false));
+            return new PaginatedCursorResponse<>(start, pledges.size(), totalCount, pledges);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve pledge page.", e);
+        }
+    }
+
+    // Keyset paging by family name. Totals are only computed for the first page.
+    public PaginatedCursorResponse<Pledge> getActivePledgeCursorPage(String cursor, int count, String search) {
+        boolean firstPage = !isSet(cursor);
+        QueryBuilder query = select(firstPage? selectAll().select("COUNT(1) OVER () AS total_count"): selectAll())
+                .search(searchParser.parse(search));
+        if(!firstPage) {
+            PageCursor after = PageCursor.decode(cursor);
+            query.where("(COALESCE(family_name, ''), id) > (?, ?)", after.getKey(), (int) after.getId());
+        }
+        query.sort("COALESCE(family_name, ''), id").limit(count);
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            List<Pledge> pledges = new ArrayList<>(count);
+            int totalCount = firstPage? 0: -1;
+            while(rs.next()) {
+                pledges.add(processRow(rs));
+                if(firstPage)
+                    totalCount = rs.getInt("total_count");
+            }
+
+            PaginatedCursorResponse<Pledge> page = new PaginatedCursorResponse<>(0, pledges.size(), totalCount, pledges);
+            if(pledges.size() == count && count > 0) {
+                Pledge last = pledges.get(pledges.size() - 1);
+                page.setNextCursor(new PageCursor(last.getFamilyName(), last.getId()).encode());
+            }
+            return page;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve pledge page.", e);
+        }
+    }
+
     public Pledge getActivePledge(int familyId, int fundId) {
         QueryBuilder query = select(selectAll()).with("family_id", familyId).with("fund_id", fundId)
                 .where("pledge_start <= NOW() AND pledge_end >= NOW()");
@@ -109,6 +201,53 @@ public class PledgeDB extends EasyDB<Pledge> {
         return getOne(query);
     }
 
+    // Narrow lookups for linking donations. These skip the progress subqueries entirely.
+    public int getRelaventPledgeId(int familyId, int fundId, LocalDate donationDate) {
+        QueryBuilder query = select("id").from("pledges").with("family_id", familyId).with("fund_id", fundId)
+                .where("pledge_start <= ? AND pledge_end >= ?", donationDate, donationDate)
+                .inOrg().sort("id").limit(1);
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            return rs.next()? rs.getInt(1): 0;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not find relevant pledge for family: " + familyId, e);
+        }
+    }
+
+    public List<Pledge> getPledgeWindows(Collection<Integer> familyIds, Collection<Integer> fundIds,
+                                         LocalDate startDate, LocalDate endDate) {
+        String sql = "SELECT id, family_id, fund_id, pledge_start, pledge_end FROM pledges " +
+                     "WHERE family_id = ANY(?) AND fund_id = ANY(?) AND pledge_start <= ? AND pledge_end >= ? AND org_id=? " +
+                     "ORDER BY id";
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setArray(1, conn.createArrayOf("integer", familyIds.toArray()));
+            stmt.setArray(2, conn.createArrayOf("integer", fundIds.toArray()));
+            stmt.setObject(3, convert(endDate));
+            stmt.setObject(4, convert(startDate));
+            stmt.setInt(5, OrganizationContext.orgId());
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                List<Pledge> pledges = new ArrayList<>();
+                while(rs.next()) {
+                    Pledge pledge = new Pledge();
+                    pledge.setId(rs.getInt("id"));
+                    pledge.setFamilyId(rs.getInt("family_id"));
+                    pledge.setFundId(rs.getInt("fund_id"));
+                    pledge.setPledgeStart(convert(rs.getDate("pledge_start")));
+                    pledge.setPledgeEnd(convert(rs.getDate("pledge_end")));
+                    pledges.add(pledge);
+                }
+                return pledges;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve pledges for donation batch.", e);
+        }
+    }
+
     public List<Pledge> getActiveFamilyPledges(int familyId) {
         QueryBuilder query = select(selectAll()).with("family_id", familyId)
                 .where("pledge_start <= NOW() AND pledge_end >= NOW()");
@@ -122,15 +261,19 @@ public class PledgeDB extends EasyDB<Pledge> {
     }
 
     public StreamingOutput getReportReader(String search, final List<String> fields) {
+        return getReportReader(search, fields, false);
+    }
+
+    public StreamingOutput getReportReader(String search, final List<String> fields, boolean bulk) {
         QueryBuilder query = select(selectAll()).search(searchParser.parse(search));
         return new ReportStreamingOutput(fields) {
             @Override
             public void write(OutputStream output) throws WebApplicationException {
-                try (Connection conn = getConnection();
-                     PreparedStatement stmt = query.prepareStatement(conn);
-                     ResultSet rs = stmt.executeQuery()) {
-
-                    writeCsv(output, rs);
+                try (Connection conn = getConnection()) {
+                    if(bulk)
+                        ReportCursor.copyCsv(conn, query, fields, output, (rs, out) -> writeCsv(out, rs));
+                    else
+                        ReportCursor.stream(conn, query, output, (rs, out) -> writeCsv(out, rs));
                 } catch (SQLException | IOException e) {
                     throw new RuntimeException("Could not retrieve donation report for search '" + search + "'", e);
                 }
@@ -138,6 +281,53 @@ public class PledgeDB extends EasyDB<Pledge> {
         };
     }
 
+    public List<Integer> findPledgeProgressDrift() {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(PROGRESS_DRIFT_SQL)) {
+
+            stmt.setInt(1, OrganizationContext.orgId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                List<Integer> pledgeIds = new ArrayList<>();
+                while(rs.next())
+                    pledgeIds.add(rs.getInt(1));
+                return pledgeIds;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not verify pledge progress.", e);
+        }
+    }
+
+    public int rebuildPledgeProgress() {
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            // Donation writes update pledge_progress from a trigger. Holding them off until commit keeps their
+            // increments from landing between the delete and the insert and being lost or counted twice.
+            try (PreparedStatement lock = conn.prepareStatement("LOCK TABLE pledge_progress IN SHARE ROW EXCLUSIVE MODE");
+                 PreparedStatement clear = conn.prepareStatement(
+                        "DELETE FROM pledge_progress WHERE pledge_id IN (SELECT id FROM pledges WHERE org_id=?)");
+                 PreparedStatement rebuild = conn.prepareStatement(
+                        "INSERT INTO pledge_progress (pledge_id, total_donations, donation_count) " +
+                        "SELECT d.pledge_id, COALESCE(SUM(d.amount), 0), COUNT(1) FROM donations d " +
+                        "JOIN pledges p ON p.id=d.pledge_id WHERE p.org_id=? GROUP BY d.pledge_id")) {
+
+                lock.execute();
+                clear.setInt(1, OrganizationContext.orgId());
+                clear.executeUpdate();
+                rebuild.setInt(1, OrganizationContext.orgId());
+                int rows = rebuild.executeUpdate();
+                conn.commit();
+                return rows;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not rebuild pledge progress.", e);
+        }
+    }
+
     public Pledge createPledge(Pledge pledge) {
         InsertBuilder cmd = insertInto("pledges")
                 .value("family_id", pledge.getFamilyId())
@@ -152,6 +342,7 @@ public class PledgeDB extends EasyDB<Pledge> {
                 .value("org_id", OrganizationContext.orgId());
 
         pledge.setId(createAndReturnKey(cmd));
+        CountCache.invalidate();
         return pledge;
     }
 
@@ -168,14 +359,27 @@ public class PledgeDB extends EasyDB<Pledge> {
                 .value("total_pledge", pledge.getAnnualPledgeAmount())
                 .withId(pledge.getId()).inOrg();
 
-        return update(cmd);
+        boolean updated = update(cmd);
+        CountCache.invalidate();
+        return updated;
     }
 
     public boolean deletePledge(int pledgeId) {
-        return delete(deleteFrom("pledges").withId(pledgeId).inOrg());
+        boolean deleted = delete(deleteFrom("pledges").withId(pledgeId).inOrg());
+        CountCache.invalidate();
+        return deleted;
     }
 
     // ----- Private -----
+    private CountCache.Counts estimateCounts() {
+        try (Connection conn = getConnection()) {
+            return CountCache.estimate(conn, "pledges");
+        } catch (SQLException e) {
+            LOG.warn("Could not estimate pledge count. Falling back to exact count.", e);
+            return null;
+        }
+    }
+
     @Override
     protected Pledge processRow(ResultSet rs) throws SQLException {
         Pledge pledge = new Pledge();
@@ -0,0 +1,84 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.donation.Donation;
+import org.servantscode.donation.Pledge;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Links donations to the pledge covering their family, fund and date.
+ *
+ * For batches, call preload() first to pull every candidate pledge with one narrow query. Donations are then linked
+ * from the in memory index. Without a preload each lookup is a single pledge_id only query.
+ *
+ * Instances hold request state and should not be shared between requests.
+ */
+public class PledgeResolver {
+    private final PledgeDB db;
+    private Map<Long, List<Pledge>> index;
+
+    public PledgeResolver(PledgeDB db) {
+        this.db = db;
+    }
+
+    public void preload(Collection<Donation> donations) {
+        Set<Integer> familyIds = new HashSet<>();
+        Set<Integer> fundIds = new HashSet<>();
+        LocalDate start = null;
+        LocalDate end = null;
+        for(Donation donation: donations) {
+            LocalDate date = donation.getDonationDate();
+            if(donation.getPledgeId() > 0 || date == null)
+                continue;
+
+            familyIds.add(donation.getFamilyId());
+            fundIds.add(donation.getFundId());
+            start = start == null || date.isBefore(start)? date: start;
+            end = end == null || date.isAfter(end)? date: end;
+        }
+
+        index = new HashMap<>();
+        if(familyIds.isEmpty())
+            return;
+
+        for(Pledge pledge: db.getPledgeWindows(familyIds, fundIds, start, end))
+            index.computeIfAbsent(key(pledge.getFamilyId(), pledge.getFundId()), k -> new ArrayList<>(2)).add(pledge);
+    }
+
+    public void linkPledge(Donation donation) {
+        if(donation.getPledgeId() > 0 || donation.getDonationDate() == null)
+            return;
+
+        int pledgeId = index != null?
+                findPledge(donation):
+                db.getRelaventPledgeId(donation.getFamilyId(), donation.getFundId(), donation.getDonationDate());
+
+        if(pledgeId > 0)
+            donation.setPledgeId(pledgeId);
+    }
+
+    public void linkPledges(Collection<Donation> donations) {
+        preload(donations);
+        donations.forEach(this::linkPledge);
+    }
+
+    // ----- Private -----
+    private int findPledge(Donation donation) {
+        List<Pledge> candidates = index.get(key(donation.getFamilyId(), donation.getFundId()));
+        if(candidates == null)
+            return 0;
+
+        //Candidates are in id order, matching the single lookup
+        LocalDate date = donation.getDonationDate();
+        for(Pledge pledge: candidates) {
+            if(!date.isBefore(pledge.getPledgeStart()) && !date.isAfter(pledge.getPledgeEnd()))
+                return pledge.getId();
+        }
+        return 0;
+    }
+
+    private static long key(int familyId, int fundId) {
+        return ((long) familyId << 32) | (fundId & 0xffffffffL);
+    }
+}
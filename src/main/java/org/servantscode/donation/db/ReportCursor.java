@@ -0,0 +1,218 @@
+package org.servantscode.donation.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.Utils;
+import org.servantscode.commons.search.QueryBuilder;
+import org.servantscode.donation.ServiceConfig;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.List;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Runs report queries against a server side cursor. The postgres driver only honours fetch size inside a transaction,
+ * so the query runs in a read only transaction and rows arrive REPORT_FETCH_SIZE at a time instead of all at once.
+ */
+class ReportCursor {
+    private static final Logger LOG = LogManager.getLogger(ReportCursor.class);
+
+    static final int REPORT_FETCH_SIZE = ServiceConfig.getInt("REPORT_FETCH_SIZE", 1000);
+    static final int REPORT_FLUSH_BYTES = ServiceConfig.getInt("REPORT_FLUSH_BYTES", 64 * 1024);
+
+    interface StatementSource {
+        PreparedStatement prepare(Connection conn) throws SQLException;
+    }
+
+    interface RowReader {
+        void read(ResultSet rs) throws SQLException, IOException;
+    }
+
+    interface RowWriter {
+        void write(ResultSet rs, OutputStream output) throws SQLException, IOException;
+    }
+
+    static void stream(Connection conn, QueryBuilder query, OutputStream output, RowWriter writer) throws SQLException, IOException {
+        stream(conn, query::prepareStatement, output, writer);
+    }
+
+    static void stream(Connection conn, StatementSource source, OutputStream output, RowWriter writer) throws SQLException, IOException {
+        OutputStream flushing = new PeriodicFlushOutputStream(output, REPORT_FLUSH_BYTES);
+        read(conn, source, rs -> writer.write(rs, flushing));
+        flushing.flush();
+    }
+
+    // The cursor setup on its own, for callers that consume rows some other way than writing them out.
+    static void read(Connection conn, StatementSource source, RowReader reader) throws SQLException, IOException {
+        conn.setAutoCommit(false);
+        conn.setReadOnly(true);
+        try (PreparedStatement stmt = source.prepare(conn)) {
+            stmt.setFetchSize(REPORT_FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                reader.read(rs);
+            }
+        } finally {
+            conn.rollback();
+            conn.setReadOnly(false);
+            conn.setAutoCommit(true);
+        }
+    }
+
+    // Bulk mode: the server formats the CSV and streams it straight to the response as it reads the rows. COPY takes
+    // no parameters, so the query's values are rendered into its SQL as literals escaped by the driver. Falls back to
+    // the cursor path when the pool does not hand out a postgres connection, a value has no safe literal form, or COPY
+    // fails before anything was written. Values are formatted by postgres, so dates and numbers may render differently
+    // than in the standard export.
+    static void copyCsv(Connection conn, QueryBuilder query, List<String> fields, OutputStream output, RowWriter fallback)
+            throws SQLException, IOException {
+        if(!conn.isWrapperFor(PGConnection.class)) {
+            LOG.warn("COPY export unavailable on this connection. Using cursor export.");
+            stream(conn, query, output, fallback);
+            return;
+        }
+
+        PeriodicFlushOutputStream flushing = new PeriodicFlushOutputStream(output, REPORT_FLUSH_BYTES);
+        try {
+            long rows = copyOut(conn, query, fields, flushing);
+            flushing.flush();
+            LOG.debug(String.format("COPY export wrote %d rows", rows));
+        } catch (SQLException e) {
+            if(flushing.getTotal() > 0)
+                throw e;
+            LOG.warn("COPY export failed. Using cursor export.", e);
+            stream(conn, query, output, fallback);
+        }
+    }
+
+    // Replaces each ? placeholder outside quotes with its value as a SQL literal.
+    static String inlineValues(String sql, List<?> values, boolean standardStrings) throws SQLException {
+        StringBuilder rendered = new StringBuilder(sql.length() + values.size() * 16);
+        int next = 0;
+        char quote = 0;
+        for(int i=0; i<sql.length(); i++) {
+            char c = sql.charAt(i);
+            if(quote != 0) {
+                if(c == quote)
+                    quote = 0;
+            } else if(c == '\'' || c == '"') {
+                quote = c;
+            } else if(c == '?') {
+                if(next >= values.size())
+                    throw new SQLException("Report query has more placeholders than values.");
+                appendLiteral(rendered, values.get(next++), standardStrings);
+                continue;
+            }
+            rendered.append(c);
+        }
+        if(next != values.size())
+            throw new SQLException("Report query has more values than placeholders.");
+        return rendered.toString();
+    }
+
+    // ----- Private -----
+    private static long copyOut(Connection conn, QueryBuilder query, List<String> fields, OutputStream output)
+            throws SQLException, IOException {
+        String columns = fields.stream().map(field -> '"' + field.replace("\"", "\"\"") + '"').collect(joining(", "));
+        String copySql = String.format("COPY (SELECT %s FROM (%s) report) TO STDOUT WITH CSV HEADER", columns,
+                                       inlineValues(query.getSql(), query.getValues(), standardStrings(conn)));
+        return conn.unwrap(PGConnection.class).getCopyAPI().copyOut(copySql, output);
+    }
+
+    private static boolean standardStrings(Connection conn) throws SQLException {
+        return conn.unwrap(BaseConnection.class).getStandardConformingStrings();
+    }
+
+    private static void appendLiteral(StringBuilder sql, Object value, boolean standardStrings) throws SQLException {
+        if(value == null) {
+            sql.append("NULL");
+        } else if(value instanceof Boolean) {
+            sql.append((Boolean) value? "TRUE": "FALSE");
+        } else if(value instanceof Integer || value instanceof Long || value instanceof Short ||
+                  value instanceof Float || value instanceof Double) {
+            double number = ((Number) value).doubleValue();
+            if(Double.isNaN(number) || Double.isInfinite(number))
+                throw new SQLException("No literal form for report value: " + value);
+            // Parenthesized when negative so "x-?" can not become a -- comment.
+            sql.append(value.toString().startsWith("-")? "(" + value + ")": value.toString());
+        } else if(value instanceof ZonedDateTime) {
+            quoted(sql, ((ZonedDateTime) value).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME), standardStrings);
+        } else if(value instanceof Timestamp) {
+            quoted(sql, ((Timestamp) value).toInstant().toString(), standardStrings);
+        } else if(value instanceof String || value instanceof Enum || value instanceof TemporalAccessor ||
+                  value instanceof java.sql.Date || value instanceof BigDecimal) {
+            quoted(sql, value.toString(), standardStrings);
+        } else {
+            throw new SQLException("No literal form for report value of type: " + value.getClass().getName());
+        }
+    }
+
+    // Left untyped like a bound parameter, so postgres resolves the type from where the value is used.
+    private static void quoted(StringBuilder sql, String value, boolean standardStrings) throws SQLException {
+        if(!standardStrings)
+            sql.append('E');
+        sql.append('\'');
+        Utils.escapeLiteral(sql, value, standardStrings);
+        sql.append('\'');
+    }
+
+    // Pushes output to the client every few KB so the download progresses while the cursor is still being read.
+    private static class PeriodicFlushOutputStream extends FilterOutputStream {
+        private final int flushBytes;
+        private int pending = 0;
+        private long total = 0;
+
+        PeriodicFlushOutputStream(OutputStream out, int flushBytes) {
+            super(out);
+            this.flushBytes = flushBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            pending = 0;
+            out.flush();
+        }
+
+        // The container owns the response stream.
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        long getTotal() { return total; }
+
+        private void written(int count) throws IOException {
+            pending += count;
+            total += count;
+            if(pending >= flushBytes)
+                flush();
+        }
+    }
+
+    private ReportCursor() {}
+}
@@ -0,0 +1,250 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.commons.db.DBAccess;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.ReportJob;
+import org.servantscode.donation.ReportJob.JobStatus;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReportJobDB extends DBAccess {
+
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    // Returns null when the org already has a queued or running job (enforced by donation_report_jobs_active_idx).
+    // The job is created already claimed by owner.
+    public ReportJob createJob(ReportJob job, String owner) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "INSERT INTO donation_report_jobs (year, format, status, requester_id, org_host, owner, org_id) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?)", new String[] {"id"})
+        ) {
+            stmt.setInt(1, job.getYear());
+            stmt.setString(2, job.getFormat().toString());
+            stmt.setString(3, JobStatus.QUEUED.toString());
+            stmt.setInt(4, job.getRequesterId());
+            stmt.setString(5, job.getOrgHost());
+            stmt.setString(6, owner);
+            stmt.setInt(7, OrganizationContext.orgId());
+
+            stmt.executeUpdate();
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                if (rs.next())
+                    job.setId(rs.getInt(1));
+            }
+            job.setStatus(JobStatus.QUEUED);
+            return job;
+        } catch (SQLException e) {
+            if(UNIQUE_VIOLATION.equals(e.getSQLState()))
+                return null;
+            throw new RuntimeException("Could not create report job for year: " + job.getYear(), e);
+        }
+    }
+
+    public ReportJob getJob(int id) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT * FROM donation_report_jobs WHERE id=? AND org_id=?")
+        ) {
+            stmt.setInt(1, id);
+            stmt.setInt(2, OrganizationContext.orgId());
+            return firstOrNull(processResults(stmt));
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve report job: " + id, e);
+        }
+    }
+
+    public ReportJob getActiveJob() {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT * FROM donation_report_jobs WHERE status IN ('QUEUED', 'RUNNING') AND org_id=?")
+        ) {
+            stmt.setInt(1, OrganizationContext.orgId());
+            return firstOrNull(processResults(stmt));
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve active report job.", e);
+        }
+    }
+
+    // Not org scoped. Used at startup to pick up jobs interrupted by a restart.
+    public List<ReportJob> getUnfinishedJobs() {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT * FROM donation_report_jobs WHERE status IN ('QUEUED', 'RUNNING') ORDER BY id")
+        ) {
+            return processResults(stmt);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve unfinished report jobs.", e);
+        }
+    }
+
+    // Atomically takes an unfinished job for owner and puts it back in the queue with a fresh heartbeat. Only one
+    // instance wins: the job must be unowned, already owned by this owner (a restart of the same instance), or have
+    // had no heartbeat for staleMinutes. Returns false if another instance holds it.
+    public boolean claim(int id, String owner, int staleMinutes) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE donation_report_jobs SET status='QUEUED', owner=?, families_done=0, updated_time=NOW() " +
+                     "WHERE id=? AND status IN ('QUEUED', 'RUNNING') " +
+                     "AND (owner IS NULL OR owner=? OR updated_time < NOW() - make_interval(mins => ?))")
+        ) {
+            stmt.setString(1, owner);
+            stmt.setInt(2, id);
+            stmt.setString(3, owner);
+            stmt.setInt(4, staleMinutes);
+            return stmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not claim report job: " + id, e);
+        }
+    }
+
+    // Not org scoped. Queued jobs make no progress while they wait for a worker, so their owner keeps them from
+    // looking abandoned.
+    public void heartbeatQueuedJobs(String owner) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE donation_report_jobs SET updated_time=NOW() WHERE status='QUEUED' AND owner=?")
+        ) {
+            stmt.setString(1, owner);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not refresh queued report jobs for: " + owner, e);
+        }
+    }
+
+    public void markRunning(int id, int familiesTotal) {
+        update(id, "UPDATE donation_report_jobs SET status='RUNNING', families_done=0, families_total=?, message=NULL, updated_time=NOW() WHERE id=?",
+                familiesTotal);
+    }
+
+    public void updateProgress(int id, int familiesDone) {
+        update(id, "UPDATE donation_report_jobs SET families_done=?, updated_time=NOW() WHERE id=?", familiesDone);
+    }
+
+    // Returns false if the job is no longer running under owner, e.g. it was failed as stalled or claimed elsewhere.
+    public boolean markComplete(int id, String owner, int familiesDone, String artifactPath) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE donation_report_jobs SET status='COMPLETE', families_done=?, artifact_path=?, completed_time=NOW(), updated_time=NOW() " +
+                     "WHERE id=? AND status='RUNNING' AND owner=?")
+        ) {
+            stmt.setInt(1, familiesDone);
+            stmt.setString(2, artifactPath);
+            stmt.setInt(3, id);
+            stmt.setString(4, owner);
+            return stmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not complete report job: " + id, e);
+        }
+    }
+
+    public void markFailed(int id, String message) {
+        setFinalStatus(id, "FAILED", message, "'QUEUED', 'RUNNING'");
+    }
+
+    // The artifact is gone or past retention. Only completed jobs expire.
+    public void markExpired(int id, String message) {
+        setFinalStatus(id, "EXPIRED", message, "'COMPLETE'");
+    }
+
+    // Not org scoped. Fails running jobs without a progress update in staleMinutes and returns their ids.
+    public List<Integer> failStalledJobs(int staleMinutes) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE donation_report_jobs SET status='FAILED', message=?, completed_time=NOW(), updated_time=NOW() " +
+                     "WHERE status='RUNNING' AND updated_time < NOW() - make_interval(mins => ?) RETURNING id")
+        ) {
+            stmt.setString(1, String.format("No progress for %d minutes.", staleMinutes));
+            stmt.setInt(2, staleMinutes);
+            try (ResultSet rs = stmt.executeQuery()) {
+                List<Integer> ids = new ArrayList<>();
+                while(rs.next())
+                    ids.add(rs.getInt(1));
+                return ids;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not fail stalled report jobs.", e);
+        }
+    }
+
+    // Not org scoped. Used by the retention sweep.
+    public List<ReportJob> getCompletedJobs() {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT * FROM donation_report_jobs WHERE status='COMPLETE' ORDER BY id")
+        ) {
+            return processResults(stmt);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve completed report jobs.", e);
+        }
+    }
+
+    // Not org scoped. Removes finished job history older than retentionDays.
+    public int deleteFinishedJobs(int retentionDays) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "DELETE FROM donation_report_jobs WHERE status IN ('FAILED', 'EXPIRED') " +
+                     "AND completed_time < NOW() - make_interval(days => ?)")
+        ) {
+            stmt.setInt(1, retentionDays);
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not delete finished report jobs.", e);
+        }
+    }
+
+    // ----- Private -----
+    private void setFinalStatus(int id, String status, String message, String fromStatuses) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE donation_report_jobs SET status=?, message=?, completed_time=COALESCE(completed_time, NOW()), updated_time=NOW() " +
+                     "WHERE id=? AND status IN (" + fromStatuses + ")")
+        ) {
+            stmt.setString(1, status);
+            stmt.setString(2, message);
+            stmt.setInt(3, id);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not set report job " + id + " to " + status, e);
+        }
+    }
+
+    private void update(int id, String sql, int value) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)
+        ) {
+            stmt.setInt(1, value);
+            stmt.setInt(2, id);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not update report job: " + id, e);
+        }
+    }
+
+    private List<ReportJob> processResults(PreparedStatement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            List<ReportJob> jobs = new ArrayList<>();
+            while(rs.next()) {
+                ReportJob job = new ReportJob();
+                job.setId(rs.getInt("id"));
+                job.setYear(rs.getInt("year"));
+                job.setFormat(rs.getString("format"));
+                job.setStatus(rs.getString("status"));
+                job.setFamiliesDone(rs.getInt("families_done"));
+                job.setFamiliesTotal(rs.getInt("families_total"));
+                job.setMessage(rs.getString("message"));
+                job.setRequesterId(rs.getInt("requester_id"));
+                job.setArtifactPath(rs.getString("artifact_path"));
+                job.setOrgHost(rs.getString("org_host"));
+                job.setCreatedTime(convert(rs.getTimestamp("created_time")));
+                job.setCompletedTime(convert(rs.getTimestamp("completed_time")));
+                jobs.add(job);
+            }
+            return jobs;
+        }
+    }
+}
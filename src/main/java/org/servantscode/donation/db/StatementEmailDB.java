@@ -0,0 +1,83 @@
+package org.servantscode.donation.db;
+
+import org.servantscode.commons.db.DBAccess;
+import org.servantscode.commons.security.OrganizationContext;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class StatementEmailDB extends DBAccess {
+
+    // REJECTED is a permanent failure: email-svc refused the message (a 4xx), so sending it again would not help.
+    // FAILED covers transient failures that outlasted the retries.
+    public enum Outcome {SENT, NO_EMAIL, REJECTED, FAILED};
+
+    // Families a run should not send to again: sent, or permanently rejected. Sending a single statement by hand
+    // overwrites a rejection.
+    public Set<Integer> getSettledFamilies(int year) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT family_id FROM donation_statement_emails WHERE year=? AND status IN ('SENT', 'REJECTED') AND org_id=?")
+        ) {
+            stmt.setInt(1, year);
+            stmt.setInt(2, OrganizationContext.orgId());
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                Set<Integer> familyIds = new HashSet<>();
+                while(rs.next())
+                    familyIds.add(rs.getInt(1));
+                return familyIds;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve emailed families for year: " + year, e);
+        }
+    }
+
+    public Map<String, Integer> getOutcomeCounts(int year) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT status, count(1) FROM donation_statement_emails WHERE year=? AND org_id=? GROUP BY status")
+        ) {
+            stmt.setInt(1, year);
+            stmt.setInt(2, OrganizationContext.orgId());
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                Map<String, Integer> counts = new LinkedHashMap<>();
+                for(Outcome outcome: Outcome.values())
+                    counts.put(outcome.toString(), 0);
+                while(rs.next())
+                    counts.put(rs.getString(1), rs.getInt(2));
+                return counts;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve email outcomes for year: " + year, e);
+        }
+    }
+
+    public void recordOutcome(int year, int familyId, Outcome outcome, String email, int attempts, String message) {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "INSERT INTO donation_statement_emails (year, family_id, status, email, attempts, message, org_id) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                     "ON CONFLICT (org_id, year, family_id) DO UPDATE SET status=EXCLUDED.status, email=EXCLUDED.email, " +
+                     "attempts=donation_statement_emails.attempts + EXCLUDED.attempts, message=EXCLUDED.message, updated_time=NOW()")
+        ) {
+            stmt.setInt(1, year);
+            stmt.setInt(2, familyId);
+            stmt.setString(3, outcome.toString());
+            stmt.setString(4, email);
+            stmt.setInt(5, attempts);
+            stmt.setString(6, message);
+            stmt.setInt(7, OrganizationContext.orgId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not record email outcome for family: " + familyId, e);
+        }
+    }
+}
@@ -1,51 +1,62 @@
 package org.servantscode.donation.rest;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.client.ApiClientFactory;
 import org.servantscode.client.FamilyServiceClient;
 import org.servantscode.client.ParishServiceClient;
 import org.servantscode.client.PersonServiceClient;
-import org.servantscode.commons.pdf.PdfWriter;
 import org.servantscode.commons.rest.SCServiceBase;
 import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.donation.AnnualReportWriter;
 import org.servantscode.donation.Donation;
 import org.servantscode.donation.EmailDonationLetterClient;
+import org.servantscode.donation.ReportBuffer;
+import org.servantscode.donation.ReportJob;
+import org.servantscode.donation.ReportJob.ReportFormat;
+import org.servantscode.donation.ReportJobManager;
+import org.servantscode.donation.StatementEmailRun;
+import org.servantscode.donation.StatementEmailer;
 import org.servantscode.donation.db.DonationDB;
+import org.servantscode.donation.db.ReportJobDB;
+import org.servantscode.donation.db.StatementEmailDB;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static org.servantscode.commons.StringUtils.isEmpty;
-import static org.servantscode.commons.pdf.PdfWriter.Alignment.*;
-import static org.servantscode.commons.pdf.PdfWriter.TextDecoration.DOUBLE_OVERLINE;
 
 @Path("/donation/record")
 public class DonationRecordSvc extends SCServiceBase {
     private static final Logger LOG = LogManager.getLogger(DonationRecordSvc.class);
 
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final int COPY_BUFFER = 64 * 1024;
+
     private DonationDB db;
+    private ReportJobDB jobDB;
 
     public DonationRecordSvc() {
         db = new DonationDB();
+        jobDB = new ReportJobDB();
     }
 
-    @GET @Path("/annual-reports/{year}") @Produces("application/pdf")
-    public Response generateAnnualReport(@PathParam("year") int year) {
+    @GET @Path("/annual-reports/{year}") @Produces({"application/pdf", "application/zip"})
+    public Response generateAnnualReport(@PathParam("year") int year,
+                                         @QueryParam("format") @DefaultValue("pdf") String format) {
         verifyUserAccess("donation.read");
 
         try {
@@ -54,27 +65,33 @@ public class DonationRecordSvc extends SCServiceBase {
             if(familyIds.isEmpty())
                 throw new NotFoundException();
 
-            List<ReportInformation> reports = new LinkedList<>();
-
             ApiClientFactory.instance().authenticateAsSystem();
             FamilyServiceClient familyClient = new FamilyServiceClient();
             ParishServiceClient parishClient = new ParishServiceClient();
             Map<String, Object> parish = parishClient.getParishForOrg(OrganizationContext.orgId());
 
+            Map<Integer, Map<String, Object>> families = AnnualReportWriter.fetchFamilies(familyIds, familyClient);
             for(int familyId: familyIds) {
-                List<Donation> d = db.getAnnualDonations(familyId, year);
-                Map<String, Object> family = familyClient.getFamily(familyId);
-                if(family == null)
+                if(!families.containsKey(familyId))
                     LOG.error("failed to find family for donations with id: " + familyId);
-                else
-                    reports.add(new ReportInformation(d, family, parish));
+            }
+
+            // Bound to this request's org now. The output is written after this method returns.
+            AnnualReportWriter writer = new AnnualReportWriter(db);
+            if("zip".equalsIgnoreCase(format)) {
+                StreamingOutput stream = output -> {
+                    createZippedDonationReports(writer, year, families, parish, output);
+                };
+                return Response.ok(stream, "application/zip")
+                        .header("Content-Disposition", String.format("attachment; filename=\"donation-reports-%d.zip\"", year))
+                        .build();
             }
 
             StreamingOutput stream = output -> {
-                createAllDonationReports(reports, output);
+                createAllDonationReports(writer, year, families, parish, output);
             };
 
-            return Response.ok(stream).build();
+            return Response.ok(stream, "application/pdf").build();
 
         } catch(Throwable t) {
             LOG.error("Retrieving annual report failed:", t);
@@ -82,15 +99,102 @@ public class DonationRecordSvc extends SCServiceBase {
         }
     }
 
-    private class ReportInformation {
-        List<Donation> donations;
-        Map<String, Object> family;
-        Map<String, Object> parish;
+    @POST @Path("/report-jobs") @Produces(APPLICATION_JSON)
+    public Response startAnnualReportJob(@QueryParam("year") int year,
+                                         @QueryParam("format") @DefaultValue("pdf") String format) {
+        verifyUserAccess("donation.read");
+
+        if(year <= 0)
+            throw new BadRequestException("Report year required.");
+
+        ReportFormat reportFormat;
+        try {
+            reportFormat = ReportFormat.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown report format: " + format);
+        }
+
+        try {
+            ReportJob job = new ReportJobManager().submit(year, reportFormat, getUserId());
+            if(job == null)
+                return Response.status(Response.Status.CONFLICT).entity(jobDB.getActiveJob()).build();
 
-        public ReportInformation(List<Donation> donations, Map<String, Object> family, Map<String, Object> parish) {
-            this.donations = donations;
-            this.family = family;
-            this.parish = parish;
+            return Response.accepted(job).build();
+        } catch(Throwable t) {
+            LOG.error("Starting annual report job failed:", t);
+            throw t;
+        }
+    }
+
+    @GET @Path("/report-jobs/{jobId}") @Produces(APPLICATION_JSON)
+    public ReportJob getAnnualReportJob(@PathParam("jobId") int jobId) {
+        verifyUserAccess("donation.read");
+
+        try {
+            ReportJob job = jobDB.getJob(jobId);
+            if(job == null)
+                throw new NotFoundException();
+            return job;
+        } catch(Throwable t) {
+            LOG.error("Retrieving annual report job failed: " + jobId, t);
+            throw t;
+        }
+    }
+
+    // Honors a single byte range so large archives can be resumed after a dropped download.
+    @GET @Path("/report-jobs/{jobId}/artifact") @Produces({"application/pdf", "application/zip"})
+    public Response downloadAnnualReportJob(@PathParam("jobId") int jobId,
+                                            @HeaderParam("Range") String range) {
+        verifyUserAccess("donation.read");
+
+        try {
+            ReportJob job = jobDB.getJob(jobId);
+            if(job == null || job.getStatus() != ReportJob.JobStatus.COMPLETE || job.getArtifactPath() == null)
+                throw new NotFoundException();
+
+            File artifact = new File(job.getArtifactPath());
+            if(!artifact.isFile()) {
+                ReportJobManager.expireMissingArtifact(job);
+                throw new NotFoundException();
+            }
+
+            String mediaType = job.getFormat() == ReportFormat.ZIP? "application/zip": "application/pdf";
+            String disposition = String.format("attachment; filename=\"%s\"", artifact.getName());
+            long length = artifact.length();
+
+            long first = 0;
+            long last = length - 1;
+            boolean partial = false;
+            if(range != null) {
+                Matcher m = BYTE_RANGE.matcher(range.trim());
+                if(!m.matches())
+                    throw new BadRequestException("Unsupported range: " + range);
+
+                first = Long.parseLong(m.group(1));
+                if(!m.group(2).isEmpty())
+                    last = Math.min(Long.parseLong(m.group(2)), length - 1);
+
+                if(first > last)
+                    return Response.status(416).header("Content-Range", "bytes */" + length).build();
+                partial = true;
+            }
+
+            long start = first;
+            long count = last - first + 1;
+            StreamingOutput stream = output -> copyRange(artifact, start, count, output);
+
+            Response.ResponseBuilder builder = partial?
+                    Response.status(206).entity(stream).type(mediaType)
+                            .header("Content-Range", String.format("bytes %d-%d/%d", first, last, length)):
+                    Response.ok(stream, mediaType);
+
+            return builder.header("Accept-Ranges", "bytes")
+                    .header("Content-Length", count)
+                    .header("Content-Disposition", disposition)
+                    .build();
+        } catch(Throwable t) {
+            LOG.error("Downloading annual report job failed: " + jobId, t);
+            throw t;
         }
     }
 
@@ -142,26 +246,14 @@ public class DonationRecordSvc extends SCServiceBase {
             Map<String, Object> family = new FamilyServiceClient().getFamily(familyId);
             Map<String, Object> parish = new ParishServiceClient().getParishForOrg(OrganizationContext.orgId());
 
-            List<Map<String, Object>> familyMembers = (List<Map<String, Object>>) family.get("members");
-            int headId=0;
-            if(familyMembers != null) {
-                 Optional<Map<String, Object>> head = familyMembers.stream().filter(fm -> (boolean) fm.get("headOfHousehold")).findFirst();
-                 if(!head.isPresent())
-                     throw new RuntimeException("Could not get family head record");
-
-                 headId = (int)head.get().get("id");
-            }
-
-            Map<String, Object> head = new PersonServiceClient().getPersonById(headId);
-
-            String email = head != null && head.containsKey("email")? (String)head.get("email"): null;
-
+            String email = StatementEmailer.findHeadOfHouseholdEmail(family, new PersonServiceClient());
             if(isEmpty(email))
                 throw new RuntimeException("Could not get family head email address.");
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            createSingleDonationReport(d, family, parish, output);
-            new EmailDonationLetterClient().sendDonationReportEmail(email, Base64.encodeBase64String(output.toByteArray()), "donation-report.pdf");
+            ReportBuffer pdf = new ReportBuffer();
+            createSingleDonationReport(d, family, parish, pdf);
+            new EmailDonationLetterClient().sendDonationReportEmail(email, pdf::toInputStream, "donation-report.pdf");
+            new StatementEmailDB().recordOutcome(year, familyId, StatementEmailDB.Outcome.SENT, email, 1, null);
 
         } catch(Throwable t) {
             LOG.error("Emailing annual report failed:", t);
@@ -169,121 +261,85 @@ public class DonationRecordSvc extends SCServiceBase {
         }
     }
 
-    private void createAllDonationReports(List<ReportInformation> reports, OutputStream output) {
-        try (PdfWriter writer = new PdfWriter()) {
-            for(ReportInformation report: reports) {
-                createDonationReport(report.donations, report.family, report.parish, writer);
-                writer.newPage();
-            }
-            writer.writeToStream(output);
-        } catch (Throwable t) {
-            LOG.error("Failed to create pdf document for annual report", t);
-            throw new WebApplicationException("Failed to create annual report pdf", t);
-        }
-    }
+    @POST @Path("/annual-reports/{year}/email") @Produces(APPLICATION_JSON)
+    public Response emailAllAnnualReports(@PathParam("year") int year) {
+        verifyUserAccess("donation.read");
+        verifyUserAccess("email.send");
 
-    private void createSingleDonationReport(List<Donation> donations, Map<String, Object> family, Map<String, Object> parish, OutputStream output) throws IOException {
-        try (PdfWriter writer = new PdfWriter()) {
-            createDonationReport(donations, family, parish, writer);
-            writer.writeToStream(output);
-        } catch (Throwable t) {
-            LOG.error("Failed to create pdf document for annual report", t);
-            throw new WebApplicationException("Failed to create annual report pdf", t);
+        try {
+            StatementEmailer emailer = new StatementEmailer();
+            StatementEmailRun run = emailer.start(year);
+            if(run == null)
+                return Response.status(Response.Status.CONFLICT).entity(emailer.getRun()).build();
+
+            return Response.accepted(run).build();
+        } catch(Throwable t) {
+            LOG.error("Starting annual report emails failed:", t);
+            throw t;
         }
     }
 
-    private void createDonationReport(List<Donation> donations, Map<String, Object> family, Map<String, Object> parish, PdfWriter writer) throws IOException {
-        AtomicReference<Float> total = new AtomicReference<>((float) 0);
-        donations.stream().map(Donation::getAmount).forEach(a -> total.set(total.get() + a));
+    @GET @Path("/annual-reports/{year}/email") @Produces(APPLICATION_JSON)
+    public Map<String, Object> getAnnualReportEmailStatus(@PathParam("year") int year) {
+        verifyUserAccess("donation.read");
 
-        writer.beginText();
-        writer.setFontSize(20);
-        writer.setAlignment(CENTER);
+        try {
+            Map<String, Object> status = new HashMap<>(4);
+            status.put("outcomes", new StatementEmailDB().getOutcomeCounts(year));
 
-        String parishName = (String) parish.get("name");
-        writer.addLine(parishName);
-        Map<String, Object> addr = (Map<String, Object>) parish.get("address");
-        if(addr != null && addr.get("street1") != null) {
-            writer.addLine(addr.get("street1").toString());
-            writer.addLine(String.format("%s, %s %s", addr.get("city"), addr.get("state"), addr.get("zip")));
-        }
-        if(parish.get("phoneNumber") != null)
-            writer.addLine(parish.get("phoneNumber").toString());
-
-        writer.setFontSize(12);
-        writer.addLine(LocalDate.now().format(DateTimeFormatter.ofPattern("MMMM dd, yyyy")));
-        writer.addBlankLine();
-
-        writer.setFontSize(12);
-        writer.setAlignment(LEFT);
-        if(family.get("formalGreeting") == null)
-            writer.addLine("To whom it may concern: ");
-        else
-            writer.addLine(family.get("formalGreeting").toString());
-
-        Map<String, Object> familyAddr = (Map<String, Object>) family.get("address");
-        if(familyAddr != null && !isEmpty((String)familyAddr.get("street1"))) {
-            writer.addLine(familyAddr.get("street1").toString());
-            writer.addLine(String.format("%s, %s %s", familyAddr.get("city"), familyAddr.get("state"), familyAddr.get("zip")));
+            StatementEmailRun run = new StatementEmailer().getRun();
+            if(run != null && run.getYear() == year)
+                status.put("run", run);
+            return status;
+        } catch(Throwable t) {
+            LOG.error("Retrieving annual report email status failed:", t);
+            throw t;
         }
+    }
 
-        //St. Mary's asked to take this out 1/29/20
-//            String homePhone = (String) family.get("homePhone");
-//            if(isSet(homePhone))
-//                writer.addLine(homePhone);
-
-        writer.addBlankLine();
-        writer.addParagraph(String.format("%s,", family.get("formalGreeting")));
-        writer.addParagraph(String.format("It is time to send out financial statements so that you will have a record of your contributions for your income tax report. Your generosity over the past year has made it possible for us to continue the mission and ministry of Jesus. Were it not for your help this would be impossible. So, on behalf of %s, thank you.", parishName));
-        writer.addParagraph("Our records show that you have contributed the following amount:");
-
-        writer.addParagraph(String.format("Total Contributions: $%.2f", total.get()));
-
-        writer.addParagraph("Thank you for your past support. Your continued contributions are greatly appreciated.");
-        writer.addParagraph("Sincerely,");
-        writer.addBlankSpace(2.0f);
-        Map<String, Object> pastor = (Map<String, Object>) parish.get("pastor");
-        if(pastor != null && pastor.get("name") != null) {
-            writer.addLine(pastor.get("name").toString());
-            writer.addLine("Pastor");
-        }
-        writer.addBlankLine();
-
-        writer.addParagraph(String.format("P.S. %s has not provided, in whole or in part, any goods or services to the above named donor in exchange for this gift.", parishName));
-        writer.addParagraph(String.format("This statement is provided by %s in order to comply with the Internal Revenue Code. Retain this and your cancelled checks with your tax records.", parishName));
-        writer.endText();
-
-        if(donations.stream().anyMatch(don -> don.getAmount() > 250)) {
-            List<Donation> bigDonations = donations.stream().filter(don -> don.getAmount() >= 250).collect(Collectors.toList());
-            AtomicReference<Float> littleDonations = new AtomicReference<>(0.0f);
-            donations.stream().filter(don -> don.getAmount() < 250)
-                    .forEach(don -> littleDonations.updateAndGet(v -> v + don.getAmount()));
-
-            writer.newPage();
-            writer.beginText();
-            writer.addParagraph("Our records show that you have made the following tax deductible contributions:");
-
-            writer.startTable(new int[] {80, 200, 80, 60}, new PdfWriter.Alignment[] {LEFT, LEFT, RIGHT, LEFT});
-            writer.addTableHeader("Date", "Description", "Amount", "Check");
-
-            for(Donation don: bigDonations) {
-                writer.addTableRow(don.getDonationDate().format(DateTimeFormatter.ISO_DATE),
-                                   don.getFundName(),
-                                   String.format("$%.2f", don.getAmount()),
-                                   don.getCheckNumber() == 0? "": Long.toString(don.getCheckNumber()));
+    // ----- Private -----
+    private void copyRange(File file, long start, long count, OutputStream output) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(start);
+            InputStream input = Channels.newInputStream(raf.getChannel());
+            byte[] buffer = new byte[COPY_BUFFER];
+            long remaining = count;
+            while(remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read < 0)
+                    break;
+                output.write(buffer, 0, read);
+                remaining -= read;
             }
+        }
+    }
 
-            writer.addBlankSpace(.5f);
-            writer.addTableRow(new int[] {40, 240, 80, 60},
-                               "", "Total of all other deductible contributions that were less than $250.00:",
-                               String.format("$%.2f", littleDonations.get()), "");
+    private void createAllDonationReports(AnnualReportWriter writer, int year, Map<Integer, Map<String, Object>> families,
+                                          Map<String, Object> parish, OutputStream output) {
+        try {
+            writer.writeAllReports(year, families, parish, output, done -> {});
+        } catch (Throwable t) {
+            LOG.error("Failed to create pdf document for annual report", t);
+            throw new WebApplicationException("Failed to create annual report pdf", t);
+        }
+    }
 
-            writer.addBlankSpace(.5f);
-            writer.addDecoration(DOUBLE_OVERLINE);
-            writer.addTableRow("", "Total:", String.format("$%.2f", total.get()), "");
-            writer.removeDecoration(DOUBLE_OVERLINE);
+    private void createZippedDonationReports(AnnualReportWriter writer, int year, Map<Integer, Map<String, Object>> families,
+                                             Map<String, Object> parish, OutputStream output) {
+        try {
+            writer.writeZippedReports(year, families, parish, output, done -> {});
+        } catch (Throwable t) {
+            LOG.error("Failed to create zip archive for annual report", t);
+            throw new WebApplicationException("Failed to create annual report archive", t);
+        }
+    }
 
-            writer.endText();
+    private void createSingleDonationReport(List<Donation> donations, Map<String, Object> family, Map<String, Object> parish, OutputStream output) throws IOException {
+        try {
+            new AnnualReportWriter(db).writeSingleReport(donations, family, parish, output);
+        } catch (Throwable t) {
+            LOG.error("Failed to create pdf document for annual report", t);
+            throw new WebApplicationException("Failed to create annual report pdf", t);
         }
     }
 }
@@ -11,12 +11,22 @@ import org.servantscode.donation.db.*;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.time.LocalDate;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static java.util.Arrays.asList;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
@@ -29,18 +39,19 @@ public class DonationSvc extends SCServiceBase {
 
     private final DonationDB donationDB;
     private final PledgeDB pledgeDB;
-    private final FamilyGivingInfoDB familyDB;
     private final FamilyContributionDB contributionDb;
     private final FundDB fundDB;
+    private final DonationPredictionDB predictionDB;
 
     private static final List<String> EXPORTABLE_FIELDS = asList("id", "family_id", "family_name", "fund_name", "amount", "type", "date", "check_number", "transaction_id");
+    private static final int MAX_BULK_PREDICTIONS = ServiceConfig.getInt("MAX_BULK_PREDICTIONS", 5000);
     private static final List<String> CONTRIBUTION_FIELDS = asList("id", "surname", "head_name", "spouse_name", "addr_street1", "addr_city", "addr_state", "addr_zip", "donation_count", "total_amount");
 
     public DonationSvc() {
         this.donationDB = new DonationDB();
         this.pledgeDB = new PledgeDB();
-        this.familyDB = new FamilyGivingInfoDB();
         this.fundDB = new FundDB();
+        this.predictionDB = new DonationPredictionDB();
         this.contributionDb = new FamilyContributionDB();
     }
 
@@ -50,7 +61,8 @@ public class DonationSvc extends SCServiceBase {
                                                                          @QueryParam("start") @DefaultValue("0") int start,
                                                                          @QueryParam("count") @DefaultValue("10") int count,
                                                                          @QueryParam("sort") @DefaultValue("surname") String sortField,
-                                                                         @QueryParam("search") @DefaultValue("") String search) {
+                                                                         @QueryParam("search") @DefaultValue("") String search,
+                                                                         @QueryParam("cursor") String cursor) {
 
         verifyUserAccess("donation.list");
 
@@ -65,10 +77,13 @@ public class DonationSvc extends SCServiceBase {
         }
 
         try {
-            int totalDonations = contributionDb.getFamilyTotalDonationCount(startDate, endDate, search);
+            //Passing cursor (empty for the first page) switches to keyset paging ordered by surname
+            if(cursor != null)
+                return contributionDb.getFamilyTotalDonationCursorPage(startDate, endDate, cursor, count, search);
 
-            List<FamilyContributions> donations = contributionDb.getFamilyTotalDonations(startDate, endDate, start, count, sortField, search);
-            return new PaginatedResponse<>(start, donations.size(), totalDonations, donations);
+            return contributionDb.getFamilyTotalDonationPage(startDate, endDate, start, count, sortField, search);
+        } catch(IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
         } catch(Throwable t) {
             LOG.error("Failed to retrieve family total donations.", t);
             throw t;
@@ -106,15 +121,18 @@ public class DonationSvc extends SCServiceBase {
                                                     @QueryParam("start") @DefaultValue("0") int start,
                                                     @QueryParam("count") @DefaultValue("10") int count,
                                                     @QueryParam("sort") @DefaultValue("date DESC, recorded_time DESC") String sortField,
-                                                    @QueryParam("search") @DefaultValue("") String search) {
+                                                    @QueryParam("search") @DefaultValue("") String search,
+                                                    @QueryParam("cursor") String cursor) {
 
         verifyUserAccess("donation.list");
         try {
-            int totalDonations = donationDB.getFamilyDonationCount(familyId, search);
-            float totalValue = donationDB.getFamilyDonationTotal(familyId, search);
+            //Passing cursor (empty for the first page) switches to keyset paging, newest first
+            if(cursor != null)
+                return donationDB.getFamilyDonationCursorPage(familyId, cursor, count, search);
 
-            List<Donation> donations = donationDB.getFamilyDonations(familyId, start, count, sortField, search);
-            return new PaginatedDonationResponse(start, donations.size(), totalDonations, donations, totalValue);
+            return donationDB.getFamilyDonationPage(familyId, start, count, sortField, search);
+        } catch(IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
         } catch(Throwable t) {
             LOG.error("Failed to retrieve family donations: " + familyId, t);
             throw t;
@@ -133,13 +151,15 @@ public class DonationSvc extends SCServiceBase {
     }
 
     @GET @Path("/report") @Produces(MediaType.TEXT_PLAIN)
-    public Response getDonationReport(@QueryParam("search") @DefaultValue("") String search) {
+    public Response getDonationReport(@QueryParam("search") @DefaultValue("") String search,
+                                      @QueryParam("bulk") @DefaultValue("false") boolean bulk) {
         verifyUserAccess("donation.export");
 
         try {
             LOG.debug(String.format("Retrieving donation report(%s)", search));
 
-            return Response.ok(donationDB.getReportReader(search, EXPORTABLE_FIELDS)).build();
+            //bulk=true has postgres write the csv directly (COPY). Faster for full extracts; formatting may differ slightly.
+            return Response.ok(donationDB.getReportReader(search, EXPORTABLE_FIELDS, bulk)).build();
         } catch (Throwable t) {
             LOG.error("Retrieving donation report failed:", t);
             throw t;
@@ -151,21 +171,73 @@ public class DonationSvc extends SCServiceBase {
     public PaginatedResponse<Donation> getDonations(@QueryParam("start") @DefaultValue("0") int start,
                                                     @QueryParam("count") @DefaultValue("10") int count,
                                                     @QueryParam("sort") @DefaultValue("date DESC, recorded_time DESC") String sortField,
-                                                    @QueryParam("search") @DefaultValue("") String search) {
+                                                    @QueryParam("search") @DefaultValue("") String search,
+                                                    @QueryParam("cursor") String cursor,
+                                                    @QueryParam("estimateCount") @DefaultValue("false") boolean estimateCount) {
 
         verifyUserAccess("donation.list");
         try {
-            int totalDonations = donationDB.getDonationCount(search);
-            float totalValue = donationDB.getDonationTotal(search);
+            //Passing cursor (empty for the first page) switches to keyset paging, newest first
+            if(cursor != null)
+                return donationDB.getDonationCursorPage(cursor, count, search);
 
-            List<Donation> donations = donationDB.getDonations(start, count, sortField, search);
-            return new PaginatedDonationResponse(start, donations.size(), totalDonations, donations, totalValue);
+            return donationDB.getDonationPage(start, count, sortField, search, estimateCount);
+        } catch(IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
         } catch(Throwable t) {
             LOG.error("Failed to retrieve donations.", t);
             throw t;
         }
     }
 
+    // Totals grouped by any of fund, type, month and family, served from memory. See DonationAnalyticsDB.
+    @GET @Path("/analytics") @Produces(APPLICATION_JSON)
+    public List<Map<String, Object>> getDonationAnalytics(@QueryParam("groupBy") @DefaultValue("fund") String groupByStr,
+                                                          @QueryParam("fundId") int fundId,
+                                                          @QueryParam("familyId") int familyId,
+                                                          @QueryParam("type") String type,
+                                                          @QueryParam("dateStart") String startDateStr,
+                                                          @QueryParam("dateEnd") String endDateStr) {
+        verifyUserAccess("donation.list");
+        if(!DonationAnalyticsDB.isEnabled())
+            throw new NotFoundException();
+
+        DonationSnapshot.Filter filter = new DonationSnapshot.Filter();
+        EnumSet<DonationSnapshot.Dimension> groupBy = EnumSet.noneOf(DonationSnapshot.Dimension.class);
+        try {
+            for(String dimension: groupByStr.split(",")) {
+                if(isSet(dimension.trim()))
+                    groupBy.add(DonationSnapshot.Dimension.valueOf(dimension.trim().toUpperCase()));
+            }
+            filter.fundId = fundId;
+            filter.familyId = familyId;
+            filter.type = isSet(type)? Donation.DonationType.valueOf(type.toUpperCase()): null;
+            filter.startDate = isSet(startDateStr)? LocalDate.parse(startDateStr): null;
+            filter.endDate = isSet(endDateStr)? LocalDate.parse(endDateStr): null;
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new BadRequestException("Bad analytics request: " + e.getMessage());
+        }
+
+        try {
+            return new DonationAnalyticsDB().query(filter, groupBy).stream().map(group -> {
+                Map<String, Object> row = new LinkedHashMap<>();
+                group.getKeys().forEach((dimension, value) -> row.put(dimension.name().toLowerCase(), value));
+                row.put("total", group.getCents()/100.0);
+                row.put("count", group.getCount());
+                return row;
+            }).collect(Collectors.toList());
+        } catch(Throwable t) {
+            LOG.error("Failed to compute donation analytics.", t);
+            throw t;
+        }
+    }
+
+    @GET @Path("/analytics/metrics") @Produces(APPLICATION_JSON)
+    public Map<String, Object> getDonationAnalyticsMetrics() {
+        verifyUserAccess("donation.list");
+        return new DonationAnalyticsDB().getMetrics();
+    }
+
     @GET @Path("/predict") @Produces(APPLICATION_JSON)
     public DonationPrediction getDonationPrediction(@QueryParam("familyId") int familyId,
                                                     @QueryParam("envelopeNumber") int envelopeNumber,
@@ -175,32 +247,11 @@ public class DonationSvc extends SCServiceBase {
             throw new BadRequestException();
 
         try {
-            FamilyGivingInfo info = familyId > 0 ?
-                    familyDB.getFamilyPledgeById(familyId):
-                    familyDB.getFamilyPledgeByEnvelope(envelopeNumber);
-
-            if(info == null) {
+            DonationPrediction pred = predictionDB.getPrediction(familyId, envelopeNumber, fundId);
+            if(pred == null) {
                 LOG.info("No family found for prediction");
                 throw new NotFoundException("No family specified for prediction");
             }
-
-            Pledge p = pledgeDB.getActivePledge(info.getId(), fundId);
-            Donation d = donationDB.getLastDonation(info.getId(), fundId);
-
-            DonationPrediction pred = new DonationPrediction();
-            pred.setFamilyId(info.getId());
-            pred.setFamilyName(info.getSurname());
-            pred.setEnvelopeNumber(info.getEnvelopeNumber());
-
-            if(d != null) {
-                pred.setAmount(d.getAmount());
-                pred.setDonationType(d.getDonationType());
-            }
-
-            if(p != null) {
-                pred.setAmount(p.getPledgeAmount()); // Prefer the amount from the pledge if available.
-            }
-
             return pred;
         } catch (Throwable t) {
             if(familyId > 0) {
@@ -212,6 +263,40 @@ public class DonationSvc extends SCServiceBase {
         }
     }
 
+    @POST @Path("/predict/bulk") @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
+    public BulkPredictionResponse getDonationPredictions(BulkPredictionRequest request) {
+        verifyUserAccess("donation.create");
+        if(request == null)
+            throw new BadRequestException();
+
+        List<Integer> familyIds = request.getFamilyIds() != null? request.getFamilyIds(): new ArrayList<>();
+        List<Integer> envelopes = request.getEnvelopeNumbers() != null? request.getEnvelopeNumbers(): new ArrayList<>();
+        if(familyIds.isEmpty() && envelopes.isEmpty())
+            throw new BadRequestException("Family ids or envelope numbers required.");
+        if(familyIds.size() + envelopes.size() > MAX_BULK_PREDICTIONS)
+            throw new BadRequestException("At most " + MAX_BULK_PREDICTIONS + " predictions per request.");
+
+        try {
+            return predictionDB.getPredictions(familyIds, envelopes, request.getFundId());
+        } catch (Throwable t) {
+            LOG.error("Failed to predict donation details in bulk.", t);
+            throw t;
+        }
+    }
+
+    @GET @Path("/predict/cache") @Produces(APPLICATION_JSON)
+    public Map<String, Object> getPredictionCacheStats() {
+        verifyUserAccess("donation.create");
+        return FamilyLookupCache.getStats();
+    }
+
+    // Drops this org's cached family lookups, e.g. after envelope numbers are reassigned.
+    @DELETE @Path("/predict/cache")
+    public void invalidatePredictionCache() {
+        verifyUserAccess("donation.create");
+        FamilyLookupCache.invalidate();
+    }
+
     @POST @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
     public Donation createDonation(Donation donation) {
         verifyUserAccess("donation.create");
@@ -238,29 +323,58 @@ public class DonationSvc extends SCServiceBase {
         verifyUserAccess("donation.create");
 
 
+        Set<Integer> unknownFunds = fundDB.findUnknownFunds(donations.stream().map(Donation::getFundId).collect(Collectors.toSet()));
+        if(!unknownFunds.isEmpty())
+            throw new BadRequestException("Unknown fund ids: " + unknownFunds);
+
         LOG.info(String.format("Recording %d donations.", donations.size()) + (skipDuplicates? " Skipping duplicate entries.": ""));
         try {
-            List<Donation> createdDonations = new ArrayList<>(donations.size());
             DonationDB db = new DonationDB();
+            ZonedDateTime recordedTime = ZonedDateTime.now();
+            int recorderId = getUserId();
             for(Donation donation: donations) {
-                donation.setRecordedTime(ZonedDateTime.now());
-                donation.setRecorderId(getUserId());
-                if(donation.getPledgeId() <= 0)
-                    linkPledge(donation);
-
-
-                if(skipDuplicates)
-                    createdDonations.add(db.createDonationIfUnique(donation));
-                else
-                    createdDonations.add(db.createDonation(donation));
+                donation.setRecordedTime(recordedTime);
+                donation.setRecorderId(recorderId);
             }
-            return createdDonations;
+            new PledgeResolver(pledgeDB).linkPledges(donations);
+
+            return skipDuplicates?
+                    db.createDonationsIfUnique(donations):
+                    db.createDonations(donations);
         } catch(Throwable t) {
             LOG.error("Batch donation creation failed!!", t);
             throw t;
         }
     }
 
+    // Columns are named by the header row; see DonationImportDB.IMPORT_COLUMNS. Gzipped files are detected by content.
+    @POST @Path("/import") @Consumes({"text/csv", MediaType.TEXT_PLAIN, "application/gzip", MediaType.APPLICATION_OCTET_STREAM})
+    @Produces(APPLICATION_JSON)
+    public DonationImportSummary importDonations(InputStream input) {
+        verifyUserAccess("donation.create");
+
+        try {
+            PushbackInputStream stream = new PushbackInputStream(new BufferedInputStream(input, 64*1024), 2);
+            byte[] magic = new byte[2];
+            int read = stream.read(magic);
+            if(read > 0)
+                stream.unread(magic, 0, read);
+
+            boolean gzipped = read == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+            InputStream csv = gzipped? new GZIPInputStream(stream, 64*1024): stream;
+
+            return new DonationImportDB().importCsv(csv, getUserId());
+        } catch(IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        } catch(IOException e) {
+            LOG.error("Could not read donation import file.", e);
+            throw new BadRequestException("Could not read import file.");
+        } catch(Throwable t) {
+            LOG.error("Donation import failed.", t);
+            throw t;
+        }
+    }
+
     @PUT @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
     public Donation updateDonation(Donation donation) {
         verifyUserAccess("donation.update");
@@ -301,9 +415,7 @@ public class DonationSvc extends SCServiceBase {
 
     // ----- Private ----
     private void linkPledge(Donation donation) {
-        Pledge linkedPledge = pledgeDB.getRelaventPledge(donation.getFamilyId(), donation.getFundId(), donation.getDonationDate());
-        if (linkedPledge != null)
-            donation.setPledgeId(linkedPledge.getId());
+        new PledgeResolver(pledgeDB).linkPledge(donation);
     }
 
 }
@@ -35,14 +35,19 @@ public class PledgeSvc extends SCServiceBase {
     public PaginatedResponse<Pledge> getActivePledges(@QueryParam("start") @DefaultValue("0") int start,
                                                       @QueryParam("count") @DefaultValue("10") int count,
                                                       @QueryParam("sort_field") @DefaultValue("family_name") String sortField,
-                                                      @QueryParam("search") @DefaultValue("") String search) {
+                                                      @QueryParam("search") @DefaultValue("") String search,
+                                                      @QueryParam("cursor") String cursor,
+                                                      @QueryParam("estimateCount") @DefaultValue("false") boolean estimateCount) {
 
         verifyUserAccess("pledge.list");
         try {
-            int totalPledges = db.getActivePledgeCount(search);
-            List<Pledge> pledges = db.getActivePledges(start, count, sortField, search);
+            //Passing cursor (empty for the first page) switches to keyset paging ordered by family name
+            if(cursor != null)
+                return db.getActivePledgeCursorPage(cursor, count, search);
 
-            return new PaginatedResponse<>(start, pledges.size(), totalPledges, pledges);
+            return db.getActivePledgePage(start, count, sortField, search, estimateCount);
+        } catch(IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
         } catch(Throwable t) {
             LOG.error("Failed to retrieve active pledges.", t);
             throw t;
@@ -51,14 +56,16 @@ public class PledgeSvc extends SCServiceBase {
 
 
     @GET @Path("/report") @Produces(MediaType.TEXT_PLAIN)
-    public Response getPledgeReport(@QueryParam("search") @DefaultValue("") String search) {
+    public Response getPledgeReport(@QueryParam("search") @DefaultValue("") String search,
+                                    @QueryParam("bulk") @DefaultValue("false") boolean bulk) {
 
         verifyUserAccess("pledge.export");
 
         try {
             LOG.trace(String.format("Retrieving pledge report(%s)", search));
 
-            return Response.ok(db.getReportReader(search, EXPORTABLE_FIELDS)).build();
+            //bulk=true has postgres write the csv directly (COPY). Faster for full extracts; formatting may differ slightly.
+            return Response.ok(db.getReportReader(search, EXPORTABLE_FIELDS, bulk)).build();
         } catch (Throwable t) {
             LOG.error("Retrieving pledge report failed:", t);
             throw t;
@@ -125,6 +132,33 @@ public class PledgeSvc extends SCServiceBase {
         }
     }
 
+    @GET @Path("/progress/check") @Produces(APPLICATION_JSON)
+    public List<Integer> checkPledgeProgress() {
+        verifyUserAccess("pledge.update");
+        try {
+            List<Integer> drifted = db.findPledgeProgressDrift();
+            if(!drifted.isEmpty())
+                LOG.warn(String.format("Found %d pledges with inconsistent progress.", drifted.size()));
+            return drifted;
+        } catch(Throwable t) {
+            LOG.error("Failed to verify pledge progress.", t);
+            throw t;
+        }
+    }
+
+    @POST @Path("/progress/rebuild") @Produces(APPLICATION_JSON)
+    public int rebuildPledgeProgress() {
+        verifyUserAccess("pledge.update");
+        try {
+            int rows = db.rebuildPledgeProgress();
+            LOG.info(String.format("Rebuilt progress for %d pledges.", rows));
+            return rows;
+        } catch(Throwable t) {
+            LOG.error("Failed to rebuild pledge progress.", t);
+            throw t;
+        }
+    }
+
     @GET @Path("/types") @Produces(APPLICATION_JSON)
     public List<String> getPledgeTypes() { return EnumUtils.listValues(Pledge.PledgeType.class); }
 
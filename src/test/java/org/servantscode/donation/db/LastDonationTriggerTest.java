@@ -0,0 +1,142 @@
+package org.servantscode.donation.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the last_donation functions against a real postgres in a scratch schema. Set TEST_DATABASE_URL (a JDBC url
+ * with credentials) to run; skipped otherwise.
+ */
+public class LastDonationTriggerTest {
+    private static final String DATABASE_URL = System.getenv("TEST_DATABASE_URL");
+
+    private Connection conn;
+    private String schema;
+
+    @Before
+    public void createSchema() throws SQLException {
+        assumeTrue("TEST_DATABASE_URL not set", DATABASE_URL != null);
+
+        conn = DriverManager.getConnection(DATABASE_URL);
+        schema = "last_donation_test_" + System.nanoTime();
+        execute("CREATE SCHEMA " + schema);
+        execute("SET search_path TO " + schema);
+        execute("CREATE TABLE organizations (id INTEGER PRIMARY KEY)");
+        execute("CREATE TABLE families (id INTEGER PRIMARY KEY)");
+        execute("CREATE TABLE funds (id INTEGER PRIMARY KEY)");
+        execute("CREATE TABLE donations (id BIGSERIAL PRIMARY KEY, org_id INTEGER, family_id INTEGER, fund_id INTEGER, " +
+                                        "amount FLOAT, type TEXT, date DATE, recorded_time TIMESTAMP WITH TIME ZONE)");
+        execute("CREATE TABLE last_donation (org_id INTEGER, family_id INTEGER, fund_id INTEGER, donation_id BIGINT NOT NULL, " +
+                                            "amount FLOAT, type TEXT, date DATE, recorded_time TIMESTAMP WITH TIME ZONE, " +
+                                            "PRIMARY KEY (org_id, family_id, fund_id))");
+        execute(DBUpgrade.REFRESH_LAST_DONATION_SQL);
+        execute(DBUpgrade.UPDATE_LAST_DONATION_SQL);
+        execute("CREATE TRIGGER donations_last_donation AFTER INSERT OR DELETE OR " +
+                "UPDATE OF org_id, family_id, fund_id, amount, type, date, recorded_time ON donations " +
+                "FOR EACH ROW EXECUTE PROCEDURE update_last_donation()");
+    }
+
+    @After
+    public void dropSchema() throws SQLException {
+        if(conn == null)
+            return;
+        try {
+            execute("DROP SCHEMA " + schema + " CASCADE");
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void undatedGiftReplacesDatedOne() throws SQLException {
+        insertDonation(LocalDate.of(2020, 1, 5));
+        long undated = insertDonation(null);
+
+        assertEquals(undated, lastDonationId());
+        assertAllPathsAgree();
+    }
+
+    @Test
+    public void datedGiftDoesNotReplaceUndatedOne() throws SQLException {
+        long undated = insertDonation(null);
+        insertDonation(LocalDate.of(2020, 2, 1));
+
+        assertEquals(undated, lastDonationId());
+        assertAllPathsAgree();
+    }
+
+    @Test
+    public void laterUndatedGiftReplacesEarlierUndatedOne() throws SQLException {
+        insertDonation(null);
+        long second = insertDonation(null);
+
+        assertEquals(second, lastDonationId());
+        assertAllPathsAgree();
+    }
+
+    @Test
+    public void deletingUndatedGiftFallsBackToLatestDated() throws SQLException {
+        insertDonation(LocalDate.of(2020, 1, 5));
+        long latestDated = insertDonation(LocalDate.of(2020, 3, 1));
+        long undated = insertDonation(null);
+
+        execute("DELETE FROM donations WHERE id=" + undated);
+
+        assertEquals(latestDated, lastDonationId());
+        assertAllPathsAgree();
+    }
+
+    // ----- Private -----
+    // The trigger, the refresh function and getLastDonation's ordering must all pick the same row.
+    private void assertAllPathsAgree() throws SQLException {
+        long triggered = lastDonationId();
+        long expected = queryLong("SELECT id FROM donations WHERE org_id=1 AND family_id=1 AND fund_id=1 " +
+                                  "ORDER BY date DESC, recorded_time DESC, id DESC LIMIT 1");
+        assertEquals("trigger and getLastDonation ordering", expected, triggered);
+
+        execute("SELECT refresh_last_donation(1, 1, 1)");
+        assertEquals("trigger and refresh_last_donation", triggered, lastDonationId());
+    }
+
+    private long insertDonation(LocalDate date) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO donations (org_id, family_id, fund_id, amount, type, date, recorded_time) " +
+                "VALUES (1, 1, 1, 10, 'CASH', ?, now()) RETURNING id")) {
+            stmt.setObject(1, date);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private long lastDonationId() throws SQLException {
+        return queryLong("SELECT donation_id FROM last_donation WHERE org_id=1 AND family_id=1 AND fund_id=1");
+    }
+
+    private long queryLong(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            assertTrue("no row for: " + sql, rs.next());
+            return rs.getLong(1);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+}
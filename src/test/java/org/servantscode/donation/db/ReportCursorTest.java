@@ -0,0 +1,247 @@
+package org.servantscode.donation.db;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ReportCursorTest {
+
+    @Test
+    public void streamReadsInReadOnlyTransactionWithFetchSize() throws Exception {
+        FakeConnection fake = new FakeConnection();
+
+        ReportCursor.stream(fake.connection(), FakeConnection::prepare, new ByteArrayOutputStream(), (rs, out) -> {
+            assertFalse("autocommit while reading", fake.autoCommit);
+            assertTrue("read only while reading", fake.readOnly);
+            while(rs.next())
+                out.write(1);
+        });
+
+        assertEquals(ReportCursor.REPORT_FETCH_SIZE, fake.fetchSize);
+        assertTrue(fake.calls.contains("executeQuery"));
+        assertTrue(fake.calls.contains("rollback"));
+        assertTrue("autocommit restored", fake.autoCommit);
+        assertFalse("read only restored", fake.readOnly);
+    }
+
+    @Test
+    public void streamFlushesEveryFlushBytes() throws Exception {
+        CountingOutputStream output = new CountingOutputStream();
+
+        ReportCursor.stream(new FakeConnection().connection(), FakeConnection::prepare, output, (rs, out) -> {
+            out.write(new byte[ReportCursor.REPORT_FLUSH_BYTES - 1]);
+            assertEquals(0, output.flushes);
+            out.write(0);
+            assertEquals(1, output.flushes);
+            out.write(new byte[ReportCursor.REPORT_FLUSH_BYTES - 1]);
+            assertEquals(1, output.flushes);
+        });
+
+        assertEquals("flushed once more when done", 2, output.flushes);
+        assertEquals(2 * ReportCursor.REPORT_FLUSH_BYTES - 1, output.size());
+    }
+
+    @Test
+    public void streamRestoresConnectionWhenWriterFails() throws Exception {
+        FakeConnection fake = new FakeConnection();
+
+        try {
+            ReportCursor.stream(fake.connection(), FakeConnection::prepare, new ByteArrayOutputStream(), (rs, out) -> {
+                throw new IOException("client went away");
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("client went away", e.getMessage());
+        }
+
+        assertTrue(fake.calls.contains("rollback"));
+        assertTrue(fake.autoCommit);
+        assertFalse(fake.readOnly);
+    }
+
+    // Millions of rows go through the cursor path while heap is sampled after GC. Anything in the path that held on
+    // to rows or output (a buffered response, a collected list) would grow with the row count and trip the ceiling.
+    @Test
+    public void streamKeepsHeapFlatOverMillionsOfRows() throws Exception {
+        int rows = 3_000_000;
+        int sampleEvery = 500_000;
+        long ceiling = 16 * 1024 * 1024;
+
+        FakeConnection fake = new FakeConnection();
+        fake.rows = rows;
+        DiscardingOutputStream output = new DiscardingOutputStream();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long[] heap = {0, 0}; // baseline, peak
+
+        ReportCursor.stream(fake.connection(), FakeConnection::prepare, output, (rs, out) -> {
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            int count = 0;
+            while(rs.next()) {
+                writer.write(rs.getLong("id") + "," + rs.getString("name") + "\n");
+                if(++count % sampleEvery == 0) {
+                    long used = settledHeap(memory);
+                    if(count == sampleEvery)
+                        heap[0] = used;
+                    heap[1] = Math.max(heap[1], used);
+                }
+            }
+            writer.flush();
+        });
+
+        assertTrue("all rows written", output.total > (long) rows * 10);
+        assertTrue(String.format("heap grew %d bytes while streaming", heap[1] - heap[0]), heap[1] - heap[0] < ceiling);
+    }
+
+    @Test
+    public void inlineValuesRendersEscapedLiterals() throws Exception {
+        String sql = ReportCursor.inlineValues("SELECT * FROM t WHERE a=? AND b=? AND c > ? AND d-? AND e IS ?",
+                Arrays.asList("O'Brien", LocalDate.of(2020, 1, 31), 5, -3, null), true);
+
+        assertEquals("SELECT * FROM t WHERE a='O''Brien' AND b='2020-01-31' AND c > 5 AND d-(-3) AND e IS NULL", sql);
+    }
+
+    @Test
+    public void inlineValuesLeavesQuotedQuestionMarksAlone() throws Exception {
+        String sql = ReportCursor.inlineValues("SELECT '?', \"what?\" FROM t WHERE a=?", Collections.singletonList(1), true);
+
+        assertEquals("SELECT '?', \"what?\" FROM t WHERE a=1", sql);
+    }
+
+    @Test
+    public void inlineValuesEscapesBackslashesWithoutStandardStrings() throws Exception {
+        String sql = ReportCursor.inlineValues("WHERE a=?", Collections.singletonList("a\\b'"), false);
+
+        assertEquals("WHERE a=E'a\\\\b'''", sql);
+    }
+
+    @Test(expected = SQLException.class)
+    public void inlineValuesRejectsMismatchedValues() throws Exception {
+        ReportCursor.inlineValues("WHERE a=? AND b=?", Collections.singletonList(1), true);
+    }
+
+    @Test(expected = SQLException.class)
+    public void inlineValuesRejectsUnknownTypes() throws Exception {
+        ReportCursor.inlineValues("WHERE a=?", Collections.singletonList(new Object()), true);
+    }
+
+    // ----- Private -----
+    private static long settledHeap(MemoryMXBean memory) {
+        System.gc();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // ----- Fakes -----
+    private static class FakeConnection {
+        final List<String> calls = new ArrayList<>();
+        boolean autoCommit = true;
+        boolean readOnly = false;
+        int fetchSize = 0;
+        int rows = 3;
+        private int row = 0;
+
+        Connection connection() {
+            return proxy(Connection.class, (name, args) -> {
+                switch (name) {
+                    case "setAutoCommit": autoCommit = (Boolean) args[0]; break;
+                    case "setReadOnly": readOnly = (Boolean) args[0]; break;
+                    case "getAutoCommit": return autoCommit;
+                    case "isReadOnly": return readOnly;
+                    case "prepareStatement": return statement();
+                }
+                return null;
+            });
+        }
+
+        static PreparedStatement prepare(Connection conn) throws SQLException {
+            return conn.prepareStatement("SELECT 1");
+        }
+
+        private PreparedStatement statement() {
+            return proxy(PreparedStatement.class, (name, args) -> {
+                switch (name) {
+                    case "setFetchSize": fetchSize = (Integer) args[0]; break;
+                    case "executeQuery": return resultSet();
+                }
+                return null;
+            });
+        }
+
+        private ResultSet resultSet() {
+            // Rows are generated on demand and calls are not recorded, so the fake holds nothing per row.
+            return proxy(ResultSet.class, false, (name, args) -> {
+                switch (name) {
+                    case "next": return ++row <= rows;
+                    case "getLong": return (long) row;
+                    case "getString": return "Family " + row;
+                }
+                return null;
+            });
+        }
+
+        private interface Handler {
+            Object handle(String name, Object[] args);
+        }
+
+        private <T> T proxy(Class<T> type, Handler handler) {
+            return proxy(type, true, handler);
+        }
+
+        private <T> T proxy(Class<T> type, boolean record, Handler handler) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[] {type}, (proxy, method, args) -> {
+                if(record)
+                    calls.add(method.getName());
+                Object result = handler.handle(method.getName(), args);
+                if(result == null && method.getReturnType() == boolean.class)
+                    return false;
+                if(result == null && method.getReturnType() == int.class)
+                    return 0;
+                if(result == null && method.getReturnType() == long.class)
+                    return 0L;
+                return result;
+            }));
+        }
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        long total = 0;
+
+        @Override
+        public void write(int b) {
+            total++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            total += len;
+        }
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int flushes = 0;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+}